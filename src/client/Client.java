@@ -1,13 +1,22 @@
 package client;
 
-import shared.Data;
+import shared.Chunk;
+import shared.Clock;
+import shared.DataPlane;
+import shared.Manifest;
+import shared.RetryException;
 import shared.Room;
+import shared.RoomState;
+import shared.Ticket;
 import shared.Utils;
 import shared.Video;
+import shared.VideoCache;
+import shared.WriteBehind;
 import shared.interfaces.CentralServerInterface;
 import shared.interfaces.ClientInterface;
 import shared.interfaces.SubserverInterface;
 import shared.remote.ClientData;
+import shared.remote.VideoSources;
 
 import javax.security.auth.login.LoginException;
 import javax.swing.*;
@@ -20,9 +29,14 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Client extends UnicastRemoteObject implements ClientInterface {
+	private static final long LOOKAHEAD = 4L * Utils.PACKAGE_SIZE;
+	
 	static {
 		if (System.getSecurityManager() == null) System.setSecurityManager(new SecurityManager());
 		System.setProperty("sun.rmi.transport.tcp.responseTimeout", Utils.TIMEOUT);
@@ -39,6 +53,7 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 	
 	String username;
 	
+	private transient CentralServerInterface central;
 	transient SubserverInterface subserver;
 	private int subserverID = -1;
 	
@@ -46,15 +61,27 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 	
 	long wakeupTime = 0;
 	
-	private final HashMap<String, Video> videos = new HashMap<>();
+	private final ConcurrentHashMap<String, Video> videos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Thread> fetchingVideos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, MultiSource> multiSources = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> streams = new ConcurrentHashMap<>();
+	private final Set<String> listed = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, Long> retryAt = new ConcurrentHashMap<>();
+	
+	private transient VideoCache cache = new VideoCache(Utils.CLIENT_CACHE_BYTES, Set.of());
+	private String playing = null;
+	
+	private final transient RangeServer rangeServer;
 	
-	private Client(String centralHost, int centralPort) throws RemoteException {
+	private Client(String centralHost, int centralPort) throws IOException {
 		this.centralHost = centralHost;
 		this.centralPort = centralPort;
+		
+		rangeServer = new RangeServer(videos::get, this::prioritize);
 	}
 	
 	public void loggedIn(String username, String password, boolean registration) throws RemoteException, LoginException, NotBoundException {
-		CentralServerInterface central = (CentralServerInterface) LocateRegistry.getRegistry(centralHost, centralPort).lookup("/Central");
+		central = (CentralServerInterface) LocateRegistry.getRegistry(centralHost, centralPort).lookup("/Central");
 		
 		this.subserver = null;
 		
@@ -85,6 +112,7 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 					gui.labelConnection.setText(" STATUS: Connected [" + subserverID + "]");
 					gui.labelConnection.setForeground(new Color(0, 102, 0));
 					
+					Clock.central.sync(subserver::time);
 					syncVideos();
 					syncUsers();
 					syncRooms();
@@ -109,12 +137,19 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 		
 		if (gui.syncThread != null) gui.syncThread.interrupt();
 		if (gui.uploadThread != null) gui.uploadThread.interrupt();
+		for (Thread fetchingThread : fetchingVideos.values()) fetchingThread.interrupt();
 		gui.player.pause(true);
 		gui.player.play("");
 		
 		Utils.cleanup("uploads/client/" + username + "/");
 		
+		for (Video video : videos.values()) video.close();
 		videos.clear();
+		streams.clear();
+		listed.clear();
+		retryAt.clear();
+		cache = new VideoCache(Utils.CLIENT_CACHE_BYTES, Set.of());
+		playing = null;
 		username = null;
 		
 		gui.loginView();
@@ -122,23 +157,209 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 	
 	private void syncVideos() throws RemoteException {
 		ArrayList<String> videoNames = subserver.getAllVideoNames();
+		
+		if (Utils.CLIENT_CACHE_BYTES >= 0) {
+			for (String videoName : videoNames) list(videoName);
+			videoNames.removeIf((videoName) -> !cache.demanded(videoName));
+		}
+		
 		for (Video video : videos.values()) if (video.finished) videoNames.remove(video.name);
 		
-		for (String videoName : videoNames) {
-			try {
-				synchronized (videoName.intern()) {
-					subserver.requestVideoFromSubserver(videoName, new ClientData(this, username, null));
-					Files.deleteIfExists(Path.of("uploads/client/" + username + "/" + videoName));
-					videos.put(videoName, new Video(videoName, null));
+		for (String videoName : videoNames) requestVideo(videoName);
+		
+		if (Utils.CLIENT_CACHE_BYTES >= 0) enforceBudget();
+	}
+	
+	private void requestVideo(String videoName) {
+		requestVideo(videoName, false);
+	}
+	
+	// Unsized only asks when no request for the video has gone through yet, like when the player waits on one just opened
+	private void requestVideo(String videoName, boolean unsized) {
+		if (fetchingVideos.containsKey(videoName) || retryAt.getOrDefault(videoName, 0L) > System.currentTimeMillis()) return;
+		
+		try {
+			synchronized (videoName.intern()) {
+				Video videoFile = register(videoName);
+				if (unsized && videoFile.size() > 0) return;
+				
+				long offset = videoFile.received.contiguous();
+				
+				if (Utils.MULTI_SOURCE) {
+					VideoSources sources = subserver.getVideoSources(videoName);
+					videoFile.allocate(sources.length);
+					getMultiSourceThread(videoFile, sources).start();
+				} else if (Utils.DATA_PLANE) {
+					Ticket ticket = subserver.requestVideoTicket(videoName, new ClientData(this, username, null), offset);
+					// Tickets run to the end of the video, the range server needs the full size before the bytes arrive
+					videoFile.allocate(ticket.offset + ticket.length);
+					getFetchThread(ticket, videoFile).start();
+				} else {
+					videoFile.allocate(subserver.requestVideoFromSubserver(videoName, new ClientData(this, username, null), offset));
+					streams.put(videoName, offset);
 				}
-			} catch (LoginException e) {
-				System.out.println(e.getMessage());
+			}
+		} catch (RetryException e) {
+			retryAt.put(videoName, System.currentTimeMillis() + e.retryAfter);
+			System.out.println(e.getMessage());
+		} catch (LoginException e) {
+			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println("Error requesting video from subserver");
+		}
+	}
+	
+	// Registered before it is requested, so the range server knows the video while its download is being set up
+	private Video register(String videoName) throws IOException {
+		synchronized (videoName.intern()) {
+			Video videoFile = videos.get(videoName);
+			if (videoFile == null) {
+				Files.deleteIfExists(Path.of("uploads/client/" + username + "/" + videoName));
+				videoFile = new Video(videoName, null);
+				videos.put(videoName, videoFile);
+			}
+			
+			return videoFile;
+		}
+	}
+	
+	private void enforceBudget() {
+		for (Video videoFile : cache.victims(videos.values())) {
+			synchronized (videoFile.name.intern()) {
+				if (!cache.evictable(videoFile) || !videos.remove(videoFile.name, videoFile)) continue;
+				
+				videoFile.close();
+				cache.forget(videoFile.name);
+				
+				try {
+					Files.deleteIfExists(Path.of(Video.destination + videoFile.name));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private Thread getFetchThread(Ticket ticket, Video videoFile) {
+		Thread thread = new Thread(() -> {
+			try {
+				DataPlane.fetch(ticket, Path.of(Video.destination + ticket.video), (transferred) -> {
+					videoFile.received(ticket.offset, ticket.offset + transferred);
+					list(ticket.video);
+				});
+				
+				finalizeVideo(ticket.video);
 			} catch (IOException e) {
-				System.out.println("Error requesting video from subserver");
+				System.out.println("Failed fetching video '" + ticket.video + "' from the subserver");
 			}
+			
+			fetchingVideos.remove(ticket.video, Thread.currentThread());
+		});
+		
+		fetchingVideos.put(ticket.video, thread);
+		return thread;
+	}
+	
+	private Thread getRequestThread(String video) {
+		Thread thread = new Thread(() -> requestVideo(video));
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	String open(String video) {
+		if (Utils.CLIENT_CACHE_BYTES >= 0) {
+			if (playing != null) cache.release(playing);
+			playing = video;
+			cache.acquire(video);
+			
+			Video videoFile = videos.get(video);
+			if (videoFile == null || !videoFile.finished) {
+				cache.demand(video);
+				
+				try {
+					register(video);
+				} catch (IOException e) {
+					System.out.println("Couldn't prepare video '" + video + "' for playing");
+				}
+				
+				// Called from the GUI, the subserver calls happen off the event thread
+				getRequestThread(video).start();
+			}
+		}
+		
+		return source(video);
+	}
+	
+	String source(String video) {
+		Video videoFile = videos.get(video);
+		if (videoFile != null && videoFile.finished) return Video.destination + video;
+		
+		return rangeServer.url(video);
+	}
+	
+	private void list(String video) {
+		if (listed.add(video)) gui.addVideo(video);
+	}
+	
+	// Called when the player waits on bytes, restarts the stream there unless it is about to arrive anyway
+	private void prioritize(String video, long offset) {
+		Video videoFile = videos.get(video);
+		if (videoFile == null || videoFile.size() <= 0) {
+			requestVideo(video, true);
+			return;
+		}
+		
+		MultiSource multiSource = multiSources.get(video);
+		if (multiSource != null) {
+			multiSource.seek(offset / Utils.PACKAGE_SIZE * Utils.PACKAGE_SIZE);
+			return;
+		}
+		
+		if (Utils.DATA_PLANE || subserver == null) return;
+		
+		long position = streams.getOrDefault(video, 0L);
+		if (offset >= position && offset < position + LOOKAHEAD) return;
+		
+		long aligned = offset / Utils.PACKAGE_SIZE * Utils.PACKAGE_SIZE;
+		streams.put(video, aligned);
+		
+		try {
+			subserver.seekVideo(video, new ClientData(this, username, null), aligned);
+		} catch (LoginException e) {
+			System.out.println(e.getMessage());
+		} catch (RemoteException e) {
+			System.out.println("Failed moving the download of video '" + video + "' to " + aligned);
 		}
 	}
 	
+	private Thread getMultiSourceThread(Video videoFile, VideoSources sources) {
+		ClientData client = new ClientData(this, username, null);
+		
+		MultiSource multiSource = new MultiSource(videoFile, (offset) -> central.readVideoChunk(videoFile.name, offset));
+		multiSource.add("subserver " + subserverID, (offset) -> subserver.readVideoChunk(videoFile.name, client, offset));
+		for (Map.Entry<Integer, SubserverInterface> source : sources.subservers.entrySet())
+			if (source.getKey() != subserverID) multiSource.add("subserver " + source.getKey(), (offset) -> source.getValue().readVideoChunk(videoFile.name, client, offset));
+		
+		Thread thread = new Thread(() -> {
+			list(videoFile.name);
+			
+			try {
+				if (multiSource.run()) finalizeVideo(videoFile.name);
+				else System.out.println("No source left for video '" + videoFile.name + "'");
+			} catch (InterruptedException | RemoteException e) {
+				System.out.println("Stopped fetching video '" + videoFile.name + "' from " + multiSource);
+			}
+			
+			multiSources.remove(videoFile.name);
+			fetchingVideos.remove(videoFile.name, Thread.currentThread());
+		});
+		
+		multiSources.put(videoFile.name, multiSource);
+		fetchingVideos.put(videoFile.name, thread);
+		return thread;
+	}
+	
 	private void syncUsers() throws RemoteException, LoginException {
 		ArrayList<String> users = subserver.getUsers();
 		
@@ -151,16 +372,73 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 	}
 	
 	@Override
-	public void uploadSubserverToClient(String video, Data data) {
-		synchronized (video.intern()) {
-			videos.get(video).write(data);
+	public void uploadSubserverToClient(Chunk chunk) throws RemoteException {
+		streams.replace(chunk.getVideo(), chunk.getOffset(), chunk.getOffset() + chunk.getSize());
+		Video videoFile = videos.get(chunk.getVideo());
+		if (videoFile == null) {
+			chunk.release();
+			throw new RemoteException("Video '" + chunk.getVideo() + "' isn't being fetched by user '" + username + "'");
+		}
+		
+		if (chunk.getOffset() == 0) list(chunk.getVideo());
+		
+		try {
+			WriteBehind.shared.write(videoFile, chunk);
+		} catch (InterruptedException e) {
+			chunk.release();
+			throw new RemoteException("Interrupted while queueing data " + chunk);
 		}
 	}
 	
 	@Override
-	public void finalizeVideo(String video) {
-		videos.get(video).finished = true;
-		gui.addVideo(video);
+	public void roomUpdated(RoomState state) {
+		gui.roomUpdated(state);
+	}
+	
+	@Override
+	public void finalizeVideo(String video) throws RemoteException {
+		try {
+			WriteBehind.shared.flush();
+		} catch (InterruptedException e) {
+			throw new RemoteException("Interrupted while finalizing video '" + video + "'");
+		}
+		
+		// Ranges skipped by seeking are fetched by the next sync
+		Video videoFile = videos.get(video);
+		if (videoFile == null) throw new RemoteException("Video '" + video + "' isn't being fetched by user '" + username + "'");
+		if (!videoFile.received.covers(0, videoFile.size())) return;
+		
+		getVerifyThread(videoFile).start();
+	}
+	
+	private Thread getVerifyThread(Video videoFile) {
+		Thread thread = new Thread(() -> {
+			try {
+				Manifest manifest = Manifest.of(videoFile);
+				BitSet corrupted = manifest.corrupted(subserver.getManifest(videoFile.name));
+				
+				if (corrupted.isEmpty()) {
+					videoFile.finish();
+					cache.fetched(videoFile.name);
+					list(videoFile.name);
+				} else {
+					// The next sync fetches the video again from the first corrupted block
+					for (int block = corrupted.nextSetBit(0); block >= 0; block = corrupted.nextSetBit(block + 1))
+						videoFile.invalidate(manifest.start(block), manifest.end(block));
+					
+					System.out.println("Video '" + videoFile.name + "' has corrupted blocks " + corrupted + ", fetching them again");
+				}
+			} catch (LoginException e) {
+				System.out.println(e.getMessage());
+			} catch (IOException | NullPointerException e) {
+				System.out.println("Couldn't verify video '" + videoFile.name + "'");
+			}
+			
+			fetchingVideos.remove(videoFile.name, Thread.currentThread());
+		});
+		
+		fetchingVideos.put(videoFile.name, thread);
+		return thread;
 	}
 	
 	@Override
@@ -172,7 +450,7 @@ public class Client extends UnicastRemoteObject implements ClientInterface {
 		this.subserverID = id;
 	}
 	
-	public static void main(String[] args) throws RemoteException {
+	public static void main(String[] args) throws IOException {
 		new Client(args.length > 0 ? args[0] : "localhost", args.length > 1 ? Integer.parseInt(args[1]) : 8000);
 	}
 }
@@ -1,8 +1,16 @@
 package client;
 
-import shared.Data;
+import shared.BufferPool;
+import shared.Chunk;
+import shared.ChunkSizer;
+import shared.Clock;
+import shared.DataPlane;
+import shared.Manifest;
 import shared.Room;
+import shared.RoomState;
+import shared.Ticket;
 import shared.Utils;
+import shared.Window;
 
 import javax.security.auth.login.LoginException;
 import javax.swing.*;
@@ -12,15 +20,19 @@ import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientGUI extends JFrame {
 	private final Client owner;
@@ -51,6 +63,9 @@ public class ClientGUI extends JFrame {
 	private JFileChooser fileChooser;
 	
 	Thread syncThread;
+	
+	private final Object roomLock = new Object();
+	private RoomState roomState;
 	Thread uploadThread;
 	
 	private final JPanel loginPanel = loginPanel();
@@ -219,38 +234,103 @@ public class ClientGUI extends JFrame {
 		return browsePanel;
 	}
 	
+	private void uploadRange(File file, long from, long to, AtomicLong uploaded, JTextArea notification) throws IOException, LoginException {
+		long total = file.length();
+		
+		if (Utils.DATA_PLANE) {
+			Ticket ticket = owner.subserver.uploadTicket(file.getName(), owner.username, from, to - from);
+			AtomicLong pushed = new AtomicLong();
+			
+			DataPlane.push(ticket, file.toPath(), (done) -> {
+				notification.setText("Uploading video '" + file.getName() + "' " + (int) ((double) uploaded.addAndGet(done - pushed.getAndSet(done)) / total * 100) + "%");
+				revalidate();
+			});
+			
+			return;
+		}
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Window window = new Window(Utils.WINDOW);
+			ChunkSizer sizer = new ChunkSizer();
+			
+			try {
+				for (long read = from; read < to; ) {
+					byte[] b = BufferPool.shared.lease();
+					
+					ByteBuffer buffer = ByteBuffer.wrap(b, 0, (int) Math.min(sizer.next(), to - read));
+					while (buffer.hasRemaining()) if (channel.read(buffer, read + buffer.position()) == -1) break;
+					
+					if (buffer.position() == 0) {
+						BufferPool.shared.release(b);
+						throw new EOFException("File '" + file.getName() + "' ended at " + read + " out of " + to);
+					}
+					
+					Chunk chunk = new Chunk(file.getName(), read, (int) (read / Utils.PACKAGE_SIZE), b, buffer.position());
+					read += buffer.position();
+					
+					window.submit(() -> {
+						try {
+							long started = System.currentTimeMillis();
+							owner.subserver.uploadVideoDataToCentral(chunk, owner.username);
+							sizer.record(chunk.getSize(), System.currentTimeMillis() - started);
+							
+							notification.setText("Uploading video '" + file.getName() + "' " + (int) ((double) uploaded.addAndGet(chunk.getSize()) / total * 100) + "% [" + sizer + "]");
+							revalidate();
+						} finally {
+							chunk.release();
+						}
+					});
+				}
+				
+				window.drain();
+			} finally {
+				window.close();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Upload of range [" + from + ", " + to + "] interrupted");
+		}
+	}
+	
 	private Thread getUploadThread() {
 		return new Thread(() -> {
 			try {
 				File file = fileChooser.getSelectedFile();
 				
 				if (file == null) throw new LoginException("No video selected for upload");
-				if (!owner.subserver.reserveVideo(file.getName(), owner.username)) throw new LoginException("Video '" + file.getName() + "' already exists");
+				long total = file.length();
 				
-				JTextArea notification = addNotification("Uploading video '" + file.getName() + "' 0%");
+				long offset = owner.subserver.reserveVideo(file.getName(), owner.username, total);
+				if (offset == -1) throw new LoginException("Video '" + file.getName() + "' already exists");
 				
-				try (InputStream is = new FileInputStream(file)) {
-					int readBytes;
-					byte[] b = new byte[Utils.PACKAGE_SIZE];
-					
-					long total = file.length();
-					long uploaded = 0;
-					while (!Thread.currentThread().isInterrupted() && (readBytes = is.read(b)) != -1) {
-						owner.subserver.uploadVideoDataToCentral(file.getName(), new Data(b, readBytes), owner.username);
-						uploaded += readBytes;
+				JTextArea notification = addNotification("Uploading video '" + file.getName() + "' " + (int) ((double) offset / total * 100) + "%");
+				AtomicLong uploaded = new AtomicLong(offset);
+				
+				// Split the rest into one range per stream, each a whole number of chunks
+				long step = Math.max(1, (total - offset) / Utils.UPLOAD_STREAMS / Utils.PACKAGE_SIZE) * Utils.PACKAGE_SIZE;
+				
+				Window streams = new Window(Utils.UPLOAD_STREAMS);
+				try {
+					for (long start = offset; start < total; start += step) {
+						long from = start;
+						long to = total - start < 2 * step ? total : start + step;
 						
-						notification.setText("Uploading video '" + file.getName() + "' " + (int) ((double) uploaded / total * 100) + "%");
-						revalidate();
+						streams.submit(() -> uploadRange(file, from, to, uploaded, notification));
+						if (to == total) break;
 					}
 					
-					if (!Thread.currentThread().isInterrupted()) {
-						owner.subserver.finalizeVideo(file.getName(), owner.username);
-					}
+					streams.drain();
+				} finally {
+					streams.close();
+				}
+				
+				if (!Thread.currentThread().isInterrupted()) {
+					owner.subserver.finalizeVideo(file.getName(), owner.username, Manifest.of(file.getName(), file.toPath(), total, true));
 				}
 			} catch (LoginException e) {
 				addNotification(e.getMessage());
 			} catch (IOException | NullPointerException e) {
 				addNotification("No connection to the server, upload cancelled");
+			} catch (InterruptedException ignored) {
 			}
 			
 			uploadButton.setEnabled(true);
@@ -289,9 +369,9 @@ public class ClientGUI extends JFrame {
 			try {
 				while (!Thread.currentThread().isInterrupted()) {
 					try {
-						Room finalRoom = owner.subserver.getRoomData(room.getID());
-						player.pause(finalRoom.getPaused());
-						player.seek(finalRoom.getTime());
+						RoomState finalRoom = owner.subserver.getRoomData(room.getID()).state();
+						player.pause(finalRoom.paused);
+						player.seek(finalRoom.position(Clock.central.now()));
 						
 						break;
 					} catch (RemoteException | LoginException e1) {
@@ -302,12 +382,29 @@ public class ClientGUI extends JFrame {
 				
 				player.setControls(true);
 				
+				// Guests play the timeline on their own, it is only sent again on play, pause, seek, drift or as a heartbeat
+				RoomState sent = null;
+				long sentAt = 0;
+				
 				while (!Thread.currentThread().isInterrupted()) {
-					try {
-						owner.subserver.setRoomData(room.getID(), player.progress.getValue(), player.getPaused());
-					} catch (RemoteException | LoginException e1) {
-						addNotification("Couldn't update room, no connection to the server, retrying");
-						Thread.sleep(1000);
+					long time = player.progress.getValue();
+					long at = Clock.central.now();
+					float rate = player.getRate();
+					boolean paused = player.getPaused();
+					
+					boolean changed = sent == null || sent.paused != paused || sent.rate != rate || Math.abs(sent.position(at) - time) > Utils.ROOM_DRIFT;
+					
+					if (changed || System.currentTimeMillis() - sentAt >= Utils.ROOM_HEARTBEAT) {
+						try {
+							// Stamped when the position was read, so the time spent getting to the central server doesn't make guests late
+							owner.subserver.setRoomData(room.getID(), time, at, rate, paused);
+							
+							sent = new RoomState(room.getID(), 0, time, at, rate, paused);
+							sentAt = System.currentTimeMillis();
+						} catch (RemoteException | LoginException e1) {
+							addNotification("Couldn't update room, no connection to the server, retrying");
+							Thread.sleep(1000);
+						}
 					}
 					
 					Thread.sleep(250);
@@ -322,9 +419,9 @@ public class ClientGUI extends JFrame {
 			try {
 				while (!Thread.currentThread().isInterrupted()) {
 					try {
-						Room finalRoom = owner.subserver.getRoomData(room.getID());
-						player.pause(finalRoom.getPaused());
-						player.seek(finalRoom.getTime());
+						RoomState finalRoom = owner.subserver.getRoomData(room.getID()).state();
+						player.pause(finalRoom.paused);
+						player.seek(finalRoom.position(Clock.central.now()));
 						
 						break;
 					} catch (RemoteException | LoginException e1) {
@@ -333,20 +430,35 @@ public class ClientGUI extends JFrame {
 					}
 				}
 				
+				RoomState timeline = null;
+				long heard = 0;
+				
 				while (!Thread.currentThread().isInterrupted()) {
 					try {
-						Room temp = owner.subserver.getRoomData(room.getID());
+						RoomState pushed = awaitRoomState(room.getID(), timeline == null ? -1 : timeline.version, 250);
+						
+						if (pushed != null) {
+							timeline = pushed;
+							heard = System.currentTimeMillis();
+						} else if (timeline == null || System.currentTimeMillis() - heard >= Utils.ROOM_POLL) {
+							RoomState polled = owner.subserver.getRoomData(room.getID()).state();
+							roomUpdated(polled);
+							
+							if (timeline == null || polled.version >= timeline.version) timeline = polled;
+							heard = System.currentTimeMillis();
+						}
 						
-						System.out.println(temp.getTime() + " - " + player.getTime() + " = " + Math.abs(temp.getTime() - player.getTime()));
-						if (temp.getPaused()) {
+						long time = timeline.position(Clock.central.now());
+						
+						System.out.println(time + " - " + player.getTime() + " = " + Math.abs(time - player.getTime()));
+						if (timeline.paused) {
 							player.pause(true);
-							if (temp.getTime() != player.getTime()) player.seek(temp.getTime());
+							if (time != player.getTime()) player.seek(time);
 						} else {
-							if (player.getPaused() || Math.abs(temp.getTime() - player.getTime()) > 1000) player.seek(temp.getTime());
+							if (player.getPaused()) player.seek(time);
+							else player.follow(time, timeline.rate);
 							player.pause(false);
 						}
-						
-						Thread.sleep(250);
 					} catch (RemoteException | LoginException e1) {
 						player.pause(true);
 						addNotification("Couldn't refresh room, no connection to the server, retrying");
@@ -358,6 +470,31 @@ public class ClientGUI extends JFrame {
 		});
 	}
 	
+	void roomUpdated(RoomState state) {
+		synchronized (roomLock) {
+			if (roomState != null && roomState.room == state.room && roomState.version >= state.version) return;
+			
+			roomState = state;
+			roomLock.notifyAll();
+		}
+	}
+	
+	// Waits for a pushed state newer than the applied one, null if none came in time
+	private RoomState awaitRoomState(int room, long applied, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		synchronized (roomLock) {
+			while (roomState == null || roomState.room != room || roomState.version <= applied) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) return null;
+				
+				roomLock.wait(left);
+			}
+			
+			return roomState;
+		}
+	}
+	
 	private void roomChangeEvent(ItemEvent e) {
 		if (e.getStateChange() != ItemEvent.SELECTED || tabbedPane.getSelectedIndex() != 1) return;
 		
@@ -382,7 +519,7 @@ public class ClientGUI extends JFrame {
 		
 		createRoom.setEnabled(false);
 		
-		player.play("uploads/client/" + owner.username + "/" + room.video);
+		player.play(owner.open(room.video), room.video);
 		player.pause(true);
 		
 		syncThread = room.owner.equals(owner.username) ? getOwnerThread(room) : getGuestThread(room);
@@ -486,12 +623,12 @@ public class ClientGUI extends JFrame {
 				rooms.setSelectedIndex(0);
 				tabbedPane.setSelectedIndex(1);
 				
-				player.play("uploads/client/" + owner.username + "/" + title);
+				player.play(owner.open(title), title);
 			}
 		});
 		
 		videosPanel.add(video, 0);
-		addNotification("Downloaded video '" + title + "'");
+		addNotification("Video '" + title + "' is ready to play");
 		
 		revalidate();
 	}
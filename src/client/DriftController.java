@@ -0,0 +1,50 @@
+package client;
+
+// Keeps a guest's player on the room's timeline, small drift is played out by running a little faster or slower and only large jumps seek
+class DriftController {
+	// Drift below this is within what the player reports its time to
+	private static final long DEAD_BAND = 100;
+	// Drift is worked off over about this long, as far as the rate band allows
+	private static final long CORRECTION_MILLIS = 5000;
+	
+	interface Media {
+		long getTime();
+		
+		float getRate();
+		
+		void setRate(float rate);
+		
+		void seek(long millis);
+	}
+	
+	private final Media media;
+	private final long seekThreshold;
+	private final float band;
+	
+	// Drift beyond the seek threshold is jumped over, smaller drift changes the rate by at most band, a fraction of it
+	DriftController(Media media, long seekThreshold, float band) {
+		this.media = media;
+		this.seekThreshold = seekThreshold;
+		this.band = band;
+	}
+	
+	// Returns whether it had to seek
+	boolean follow(long target, float rate) {
+		long drift = target - media.getTime();
+		
+		if (Math.abs(drift) > seekThreshold) {
+			media.seek(target);
+			adjust(rate);
+			return true;
+		}
+		
+		float correction = Math.abs(drift) <= DEAD_BAND ? 0 : Math.max(-band, Math.min(band, (float) drift / CORRECTION_MILLIS));
+		
+		adjust(rate * (1 + correction));
+		return false;
+	}
+	
+	private void adjust(float rate) {
+		if (Math.abs(media.getRate() - rate) > 0.005f) media.setRate(rate);
+	}
+}
@@ -0,0 +1,225 @@
+package client;
+
+import shared.Chunk;
+import shared.RetryException;
+import shared.Utils;
+import shared.Video;
+import shared.WriteBehind;
+
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+// Pulls disjoint chunks of one video from every source holding it, faster sources take more chunks and retake the slow ones at the end
+class MultiSource {
+	// Refusals in a row before a source that keeps turning chunks down is given up on
+	private static final int REFUSALS = 10;
+	private static final long BACKOFF = 1000;
+	
+	interface Source {
+		Chunk read(long offset) throws IOException, LoginException;
+	}
+	
+	private class Peer {
+		final String name;
+		final Source source;
+		
+		// Observed bytes per millisecond, 0 until the first chunk arrives
+		double throughput = 0;
+		
+		long offset = -1;
+		long started;
+		int refusals = 0;
+		
+		Peer(String name, Source source) {
+			this.name = name;
+			this.source = source;
+		}
+		
+		double expected() {
+			return throughput > 0 ? Utils.PACKAGE_SIZE / throughput : Double.MAX_VALUE;
+		}
+		
+		@Override
+		public String toString() {
+			return name + " " + (long) (throughput * 1000) + "B/s";
+		}
+	}
+	
+	private final Video video;
+	private final ArrayList<Peer> peers = new ArrayList<>();
+	private final Peer fallback;
+	
+	private final TreeSet<Long> pending = new TreeSet<>();
+	private final HashMap<Long, Peer> inFlight = new HashMap<>();
+	private volatile long playhead = 0;
+	private int alive = 0;
+	
+	MultiSource(Video video, Source fallback) {
+		this.video = video;
+		this.fallback = new Peer("central", fallback);
+		
+		for (long offset = 0; offset < video.size(); offset += Utils.PACKAGE_SIZE)
+			if (!video.received.covers(offset, Math.min(video.size(), offset + Utils.PACKAGE_SIZE))) pending.add(offset);
+	}
+	
+	void add(String name, Source source) {
+		peers.add(new Peer(name, source));
+	}
+	
+	void seek(long offset) {
+		playhead = offset;
+	}
+	
+	// Returns true once every chunk arrived, false if every source failed first
+	boolean run() throws InterruptedException {
+		if (peers.isEmpty()) peers.add(fallback);
+		
+		ArrayList<Thread> threads = new ArrayList<>();
+		synchronized (this) {
+			alive = peers.size();
+		}
+		
+		for (Peer peer : peers) threads.add(getPullThread(peer));
+		for (Thread thread : threads) thread.start();
+		
+		try {
+			synchronized (this) {
+				while (!finished()) {
+					if (alive == 0) {
+						if (peers.contains(fallback)) return false;
+						
+						peers.add(fallback);
+						alive++;
+						
+						Thread thread = getPullThread(fallback);
+						threads.add(thread);
+						thread.start();
+					}
+					
+					wait();
+				}
+			}
+		} finally {
+			for (Thread thread : threads) thread.interrupt();
+		}
+		
+		return true;
+	}
+	
+	private boolean finished() {
+		return pending.isEmpty() && inFlight.isEmpty();
+	}
+	
+	private synchronized long take(Peer peer) throws InterruptedException {
+		while (!finished()) {
+			if (!pending.isEmpty()) {
+				Long offset = pending.ceiling(playhead);
+				if (offset == null) offset = pending.first();
+				
+				pending.remove(offset);
+				return assign(peer, offset);
+			}
+			
+			// Nothing left to hand out, retake a chunk whose source is expected to finish it later than this one would
+			long now = System.currentTimeMillis();
+			for (Peer owner : inFlight.values())
+				if (owner != peer && peer.expected() < owner.expected() - (now - owner.started)) return assign(peer, owner.offset);
+			
+			wait(100);
+		}
+		
+		return -1;
+	}
+	
+	private long assign(Peer peer, long offset) {
+		if (!inFlight.containsKey(offset)) inFlight.put(offset, peer);
+		
+		peer.offset = offset;
+		peer.started = System.currentTimeMillis();
+		
+		return offset;
+	}
+	
+	private synchronized void complete(Peer peer, long offset, long elapsed, int size) {
+		double sample = (double) size / Math.max(1, elapsed);
+		peer.throughput = peer.throughput == 0 ? sample : 0.7 * peer.throughput + 0.3 * sample;
+		peer.offset = -1;
+		peer.refusals = 0;
+		
+		inFlight.remove(offset);
+		notifyAll();
+	}
+	
+	private synchronized void requeue(Peer peer) {
+		if (peer.offset >= 0 && inFlight.get(peer.offset) == peer) {
+			inFlight.remove(peer.offset);
+			pending.add(peer.offset);
+		}
+		
+		peer.offset = -1;
+		notifyAll();
+	}
+	
+	private synchronized void fail(Peer peer) {
+		requeue(peer);
+		alive--;
+	}
+	
+	private Thread getPullThread(Peer peer) {
+		Thread thread = new Thread(() -> {
+			try {
+				long offset;
+				
+				while ((offset = take(peer)) >= 0) {
+					long started = System.currentTimeMillis();
+					Chunk chunk;
+					
+					try {
+						chunk = peer.source.read(offset);
+					} catch (LoginException e) {
+						// Refusals like a busy source or a video still being fetched pass, only connection errors end a source
+						if (++peer.refusals >= REFUSALS) throw e;
+						
+						requeue(peer);
+						Thread.sleep(e instanceof RetryException ? ((RetryException) e).retryAfter : BACKOFF);
+						continue;
+					}
+					
+					synchronized (this) {
+						// Another source may have retaken and finished this chunk already
+						if (!inFlight.containsKey(offset) && !pending.contains(offset)) {
+							chunk.release();
+							peer.offset = -1;
+							continue;
+						}
+					}
+					
+					try {
+						WriteBehind.shared.write(video, chunk);
+					} catch (InterruptedException e) {
+						chunk.release();
+						throw e;
+					}
+					
+					complete(peer, offset, System.currentTimeMillis() - started, chunk.getSize());
+				}
+			} catch (IOException | LoginException e) {
+				System.out.println("Source " + peer + " failed for video '" + video.name + "': " + e.getMessage());
+				fail(peer);
+			} catch (InterruptedException e) {
+				fail(peer);
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "'" + video.name + "' " + peers;
+	}
+}
@@ -1,6 +1,7 @@
 package client;
 
 import com.sun.jna.NativeLibrary;
+import shared.Utils;
 import uk.co.caprica.vlcj.binding.RuntimeUtil;
 import uk.co.caprica.vlcj.player.base.MediaPlayer;
 import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
@@ -13,7 +14,7 @@ import java.awt.event.MouseEvent;
 import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 
-public class Player extends JPanel {
+public class Player extends JPanel implements DriftController.Media {
 	static {
 		NativeLibrary.addSearchPath(RuntimeUtil.getLibVlcLibraryName(), "./lib");
 	}
@@ -32,6 +33,8 @@ public class Player extends JPanel {
 	
 	private String video = null;
 	
+	private final DriftController drift = new DriftController(this, Utils.ROOM_SEEK, Utils.ROOM_RATE_BAND / 100f);
+	
 	private void moveSlider(MouseEvent e) {
 		progress.setValue((int) Math.round(((double) progress.getMaximum()) * (long) e.getPoint().x / ((long) progress.getWidth())));
 		
@@ -127,8 +130,13 @@ public class Player extends JPanel {
 	}
 	
 	public void play(String path) {
-		emp.mediaPlayer().media().play(path);
-		video = Paths.get(path).getFileName().toString();
+		play(path, Paths.get(path).getFileName().toString());
+	}
+	
+	public void play(String mrl, String video) {
+		emp.mediaPlayer().media().play(mrl);
+		emp.mediaPlayer().controls().setRate(1);
+		this.video = video;
 	}
 	
 	public void pause() {
@@ -148,6 +156,11 @@ public class Player extends JPanel {
 		this.controls = state;
 	}
 	
+	public boolean follow(long millis, float rate) {
+		return drift.follow(millis, rate);
+	}
+	
+	@Override
 	public void seek(long millis) {
 		emp.mediaPlayer().controls().setTime(millis);
 		alignSlider();
@@ -157,10 +170,21 @@ public class Player extends JPanel {
 		return video;
 	}
 	
+	@Override
 	public long getTime() {
 		return emp.mediaPlayer().status().time();
 	}
 	
+	@Override
+	public float getRate() {
+		return emp.mediaPlayer().status().rate();
+	}
+	
+	@Override
+	public void setRate(float rate) {
+		emp.mediaPlayer().controls().setRate(rate);
+	}
+	
 	public boolean getPaused() {
 		return !emp.mediaPlayer().status().isPlaying();
 	}
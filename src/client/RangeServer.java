@@ -0,0 +1,154 @@
+package client;
+
+import shared.Utils;
+import shared.Video;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// Local HTTP stand-in the player reads from, range reads block until the bytes have arrived
+class RangeServer {
+	private static final int SEGMENT = 64 * 1024;
+	private static final int RETRY = 1000;
+	
+	private final ServerSocket socket;
+	private final Function<String, Video> videos;
+	private final BiConsumer<String, Long> missing;
+	
+	RangeServer(Function<String, Video> videos, BiConsumer<String, Long> missing) throws IOException {
+		this.videos = videos;
+		this.missing = missing;
+		
+		socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		getAcceptThread().start();
+	}
+	
+	String url(String video) {
+		return "http://127.0.0.1:" + socket.getLocalPort() + "/" + URLEncoder.encode(video, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+	
+	private Thread getAcceptThread() {
+		Thread thread = new Thread(() -> {
+			while (!socket.isClosed()) {
+				try {
+					Thread serveThread = getServeThread(socket.accept());
+					serveThread.setDaemon(true);
+					serveThread.start();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	private Thread getServeThread(Socket client) {
+		return new Thread(() -> {
+			try (client) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+				OutputStream out = client.getOutputStream();
+				
+				String[] request = String.valueOf(in.readLine()).split(" ");
+				if (request.length < 2) return;
+				
+				String range = null;
+				for (String line; (line = in.readLine()) != null && !line.isEmpty(); )
+					if (line.toLowerCase().startsWith("range: bytes=")) range = line.substring(13).trim();
+				
+				Video video = await(URLDecoder.decode(request[1].substring(1), StandardCharsets.UTF_8));
+				long length = video == null ? -1 : video.size();
+				
+				if (length <= 0) {
+					out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					return;
+				}
+				
+				long start = 0;
+				long end = length - 1;
+				
+				if (range != null) {
+					String[] bounds = range.split("-", -1);
+					if (bounds[0].isEmpty()) {
+						// Suffix range, the last N bytes
+						if (bounds.length > 1 && !bounds[1].isEmpty()) start = Math.max(0, length - Long.parseLong(bounds[1]));
+					} else {
+						start = Long.parseLong(bounds[0]);
+						if (bounds.length > 1 && !bounds[1].isEmpty()) end = Math.min(Long.parseLong(bounds[1]), length - 1);
+					}
+				}
+				
+				if (start > end) {
+					out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+					return;
+				}
+				
+				out.write(((range == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/" + length + "\r\n")
+						+ "Accept-Ranges: bytes\r\nContent-Type: application/octet-stream\r\nContent-Length: " + (end - start + 1) + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				
+				if (request[0].equals("HEAD")) return;
+				
+				serve(video, out, start, end + 1);
+			} catch (IOException | NumberFormatException e) {
+				// The player closes connections it no longer needs, for example when seeking
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+	
+	// A video opened before its download is set up has no record or size yet, asks for it until it has both
+	private Video await(String name) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + Integer.parseInt(Utils.TIMEOUT);
+		
+		while (true) {
+			Video video = videos.apply(name);
+			if (video != null && video.size() > 0 || System.currentTimeMillis() > deadline) return video;
+			
+			missing.accept(name, 0L);
+			
+			if (video == null) Thread.sleep(RETRY);
+			else video.awaitSize(RETRY);
+		}
+	}
+	
+	private void serve(Video video, OutputStream out, long start, long end) throws IOException, InterruptedException {
+		try (FileChannel file = FileChannel.open(Path.of(Video.destination + video.name), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(SEGMENT);
+			
+			for (long position = start; position < end; ) {
+				long limit = Math.min(end, position + SEGMENT);
+				
+				// Asks again every second in case the download was lost, the player gets the connection closed if nothing arrives
+				long deadline = System.currentTimeMillis() + Integer.parseInt(Utils.TIMEOUT);
+				while (!video.received.covers(position, limit)) {
+					if (System.currentTimeMillis() > deadline) return;
+					
+					missing.accept(video.name, position);
+					video.await(position, limit, RETRY);
+				}
+				
+				buffer.clear().limit((int) (limit - position));
+				while (buffer.hasRemaining()) if (file.read(buffer, position + buffer.position()) == -1) return;
+				
+				out.write(buffer.array(), 0, buffer.position());
+				position = limit;
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package server;
+
+import shared.BufferPool;
+import shared.Chunk;
+import shared.ChunkSizer;
+import shared.Utils;
+import shared.Video;
+import shared.interfaces.SubserverInterface;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+
+// Sends a video to a subserver a chunk at a time, blocks it already has are skipped whole so chunks never cross a block boundary
+class BlockSender implements Closeable {
+	private final Video videoFile;
+	private final SubserverInterface target;
+	private final ChunkSizer sizer;
+	private final BitSet present;
+	private final long total;
+	
+	private InputStream is;
+	private long sent;
+	
+	BlockSender(Video videoFile, SubserverInterface target, ChunkSizer sizer, long offset, BitSet present) {
+		this.videoFile = videoFile;
+		this.target = target;
+		this.sizer = sizer;
+		this.present = present;
+		
+		total = videoFile.size();
+		sent = offset;
+	}
+	
+	// Sends the next chunk and returns its size, -1 once everything is sent and the target was told to finalize the video
+	int send() throws IOException {
+		if (is == null) {
+			is = videoFile.read();
+			is.skipNBytes(sent);
+		}
+		
+		while (present != null && sent < total && present.get((int) (sent / Utils.PACKAGE_SIZE))) {
+			long next = Math.min(total, (sent / Utils.PACKAGE_SIZE + 1) * Utils.PACKAGE_SIZE);
+			is.skipNBytes(next - sent);
+			sent = next;
+		}
+		
+		byte[] b = BufferPool.shared.lease();
+		try {
+			int readBytes = is.read(b, 0, (int) Math.min(sizer.next(), (sent / Utils.PACKAGE_SIZE + 1) * Utils.PACKAGE_SIZE - sent));
+			if (readBytes == -1) {
+				target.finalizeVideoFromCentral(videoFile.name);
+				return -1;
+			}
+			
+			Chunk chunk = new Chunk(videoFile.name, sent, (int) (sent / Utils.PACKAGE_SIZE), b, readBytes);
+			
+			long started = System.currentTimeMillis();
+			target.uploadCentralToSubserver(chunk);
+			sizer.record(readBytes, System.currentTimeMillis() - started);
+			
+			sent += readBytes;
+			return readBytes;
+		} finally {
+			BufferPool.shared.release(b);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (is != null) is.close();
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + sent + "/" + total + ", " + videoFile.percent(sent) + "%, " + sizer + "]";
+	}
+}
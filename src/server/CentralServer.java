@@ -1,25 +1,32 @@
 package server;
 
-import shared.Data;
+import shared.BufferPool;
+import shared.Chunk;
+import shared.ChunkSizer;
+import shared.ChunkStore;
+import shared.DataPlane;
+import shared.Manifest;
+import shared.RetryException;
 import shared.Room;
+import shared.RoomState;
+import shared.Ticket;
 import shared.Utils;
 import shared.Video;
 import shared.interfaces.CentralServerInterface;
-import shared.interfaces.SubserverInterface;
 import shared.remote.ClientData;
 import shared.remote.SubserverData;
+import shared.remote.VideoSources;
 
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.rmi.RemoteException;
+import java.nio.file.StandardCopyOption;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Set;
@@ -53,17 +60,76 @@ public class CentralServer implements CentralServerInterface {
 	private final ConcurrentHashMap<String, Video> videos = new ConcurrentHashMap<>();
 	
 	private final Set<String> requestedVideos = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, AtomicInteger> seeding = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> replicationSources = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, ChunkSizer> sizers = new ConcurrentHashMap<>();
+	private final ChunkStore store = new ChunkStore();
 	
 	private final Logger log;
 	
-	public CentralServer(int port, boolean nogui) throws UnknownHostException, RemoteException {
+	private final DataPlane dataPlane;
+	private final RoomFanout<Integer> fanout = new RoomFanout<>(Utils.ROOM_PUSHERS, (id, state) -> {
+		SubserverData subserver = subservers.get(id);
+		if (subserver != null) subserver.server.roomUpdated(state);
+	});
+	
+	private final TransferScheduler scheduler = new TransferScheduler(Utils.TRANSFERS, this::playing);
+	
+	public CentralServer(int port, boolean nogui) throws IOException {
 		Video.setDestination("uploads/server/");
 		
 		String ip = InetAddress.getLocalHost().getHostAddress();
 		log = new Logger(nogui ? System.out::print : (new ServerGUI("Central Server [" + ip + ":" + port + ", " + wakeupTime + "]", "centralserver"))::print);
 		
+		dataPlane = new DataPlane(ip, this::dataPlaneProgress);
+		
 		LocateRegistry.createRegistry(port).rebind("/Central", UnicastRemoteObject.exportObject(this, 0));
-		log.info("Server started on " + ip + ":" + port + " with ID " + wakeupTime);
+		log.info("Server started on " + ip + ":" + port + " with ID " + wakeupTime + ", data plane on port " + dataPlane.getPort());
+		
+		getRoomWatchThread().start();
+	}
+	
+	// Owners that stop sending updates have their rooms paused, guests only hear about it through a push
+	private Thread getRoomWatchThread() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				for (Room room : rooms) {
+					long now = System.currentTimeMillis();
+					
+					if (!room.getPaused() && room.getLastUpdate() + Utils.ROOM_TIMEOUT < now) {
+						log.info("Unpaused room " + room.getID() + " not receiving updates for " + Utils.ROOM_TIMEOUT + "ms, pausing");
+						
+						RoomState state = room.state();
+						room.sync(state.position(now), now, state.rate, true, now);
+						publish(room);
+					}
+				}
+				
+				Utils.sleep(500);
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	// One push per subserver with viewers of the room, the subserver passes it on to them
+	private void publish(Room room) {
+		RoomState state = room.state();
+		
+		for (SubserverData subserver : subservers.values())
+			if (room.viewers.stream().anyMatch(subserver.users::containsKey)) fanout.send(subserver.id, state);
+	}
+	
+	private void dataPlaneProgress(Ticket ticket, long transferred) {
+		if (ticket.upload) {
+			Video videoFile = videos.get(ticket.video);
+			
+			videoFile.received(ticket.offset, ticket.offset + transferred);
+			videoFile.touch();
+		}
+		
+		log.info((ticket.upload ? "Receiving" : "Sending") + " data for video '" + ticket.video + "' over the data plane [" + transferred + "/" + ticket.length + ", " + (int) ((double) transferred / ticket.length * 100) + "%]");
 	}
 	
 	private void insert(ClientData client) {
@@ -217,31 +283,62 @@ public class CentralServer implements CentralServerInterface {
 	}
 	
 	@Override
-	public boolean reserveVideo(String video, String owner) {
+	public long reserveVideo(String video, String owner, long length) {
 		log.info("Recieved request to upload video '" + video + "'");
 		
-		Video videoFile = videos.get(video);
-		
 		try {
 			synchronized (video.intern()) {
+				Video videoFile = videos.get(video);
+				
 				if (videoFile != null && !videoFile.expired() && (!videoFile.owner.equals(owner) || videoFile.finished)) {
 					log.info("Video with name '" + video + "' already exists");
-					return false;
+					return -1;
 				}
 				
-				videos.put(video, new Video(video, owner));
+				if (videoFile != null && videoFile.owner.equals(owner)) {
+					videoFile.touch();
+					
+					log.info("Resuming upload of video '" + video + "' from " + videoFile.received.contiguous());
+					return videoFile.received.contiguous();
+				}
+				
+				if (videoFile != null) videoFile.close();
 				Files.deleteIfExists(Path.of("uploads/server/" + video));
+				
+				videoFile = new Video(video, owner);
+				videoFile.allocate(length);
+				videos.put(video, videoFile);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		return true;
+		return 0;
+	}
+	
+	@Override
+	public void uploadVideoDataToCentral(Chunk chunk, String username) throws LoginException {
+		log.info("Recieved request to upload data " + chunk + " by user '" + username + "'");
+		
+		String video = chunk.getVideo();
+		
+		try {
+			synchronized (video.intern()) {
+				Video videoFile = videos.get(video);
+				
+				if (!username.equals(videoFile.owner))
+					log.error("Previous owner '" + username + "' tried to upload video '" + video + "' which is now owned by '" + videoFile.owner + "'", "Video is now owned by someone else!");
+				
+				videoFile.write(chunk);
+			}
+		} finally {
+			chunk.release();
+		}
 	}
 	
 	@Override
-	public void uploadVideoDataToCentral(String video, Data data, String username) throws LoginException {
-		log.info("Recieved request to upload data '" + video + "' by user '" + username + "'");
+	public Ticket uploadTicket(String video, String username, long offset, long length) throws LoginException {
+		log.info("Recieved request for an upload ticket for '" + video + "' by user '" + username + "'");
 		
 		synchronized (video.intern()) {
 			Video videoFile = videos.get(video);
@@ -249,79 +346,293 @@ public class CentralServer implements CentralServerInterface {
 			if (!username.equals(videoFile.owner))
 				log.error("Previous owner '" + username + "' tried to upload video '" + video + "' which is now owned by '" + videoFile.owner + "'", "Video is now owned by someone else!");
 			
-			videoFile.write(data);
+			videoFile.touch();
+			return dataPlane.issue(video, offset, length, true);
 		}
 	}
 	
 	@Override
-	public void finalizeVideoOnCentral(String video, String username) throws LoginException {
+	public void finalizeVideoOnCentral(String video, String username, Manifest expected) throws LoginException {
 		log.info("Recieved request to finalize '" + video + "' by user '" + username + "'");
 		
+		Video videoFile;
+		long revision;
+		
 		synchronized (video.intern()) {
-			Video videoFile = videos.get(video);
+			videoFile = videos.get(video);
 			
 			if (!username.equals(videoFile.owner))
 				log.error("Previous owner '" + username + "' tried to finalize video '" + video + "' which is now owned by '" + videoFile.owner + "'", "Video is now owned by someone else!");
 			
-			videoFile.finished = true;
+			if (!videoFile.received.covers(0, videoFile.size()))
+				log.error("Video '" + video + "' is missing data, received only " + videoFile.received, "Upload of video '" + video + "' is incomplete, try again");
+			
+			revision = videoFile.revision();
+		}
+		
+		// Hashed without holding the video, other calls for it don't wait on a large file
+		Manifest manifest;
+		try {
+			manifest = Manifest.of(videoFile);
+		} catch (IOException e) {
+			log.error("Couldn't hash uploaded video '" + video + "'", "Couldn't verify video '" + video + "' on the central server");
+			return;
+		}
+		
+		synchronized (video.intern()) {
+			if (videos.get(video) != videoFile || videoFile.revision() != revision)
+				log.error("Video '" + video + "' changed while it was being verified", "Upload of video '" + video + "' changed during finalization, try again");
+			if (videoFile.finished) return;
+			
+			BitSet corrupted = manifest.corrupted(expected);
+			if (!corrupted.isEmpty()) {
+				for (int block = corrupted.nextSetBit(0); block >= 0; block = corrupted.nextSetBit(block + 1))
+					videoFile.invalidate(manifest.start(block), manifest.end(block));
+				
+				log.error("Video '" + video + "' has " + corrupted.cardinality() + " corrupted blocks " + corrupted, "Upload of video '" + video + "' was corrupted, upload it again");
+			}
+			
+			videoFile.finish();
+			index(videoFile, manifest);
 		}
 	}
 	
+	private void index(Video videoFile, Manifest manifest) {
+		String identical = store.identical(manifest);
+		if (identical != null) {
+			// Linked under a temporary name first, the upload is only replaced once the link exists
+			Path path = Path.of(Video.destination + videoFile.name);
+			Path link = Path.of(Video.destination + videoFile.name + ".link");
+			
+			try {
+				Files.deleteIfExists(link);
+				Files.createLink(link, Path.of(Video.destination + identical));
+				Files.move(link, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				
+				log.info("Video '" + videoFile.name + "' has the same content as video '" + identical + "', storing it once");
+			} catch (IOException | UnsupportedOperationException e) {
+				log.info("Couldn't link video '" + videoFile.name + "' to identical video '" + identical + "', keeping its own copy");
+				
+				try {
+					Files.deleteIfExists(link);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		
+		store.add(manifest);
+		log.info("Indexed video " + manifest + ", chunk store " + store);
+	}
+	
+	@Override
+	public Manifest getManifest(String video) throws LoginException {
+		log.info("Sending the manifest of video '" + video + "'");
+		
+		Manifest manifest = store.manifest(video);
+		if (manifest == null) log.error("Requested manifest of unavailable video '" + video + "'", "Video '" + video + "' is not available on the central server");
+		
+		return manifest;
+	}
+	
 	@Override
-	public void requestVideoFromCentral(String video, int subserverID) throws LoginException {
-		log.info("Subserver " + subserverID + " requested video '" + video + "'");
+	public long requestVideoFromCentral(String video, int subserverID, long offset, boolean urgent, BitSet present) throws LoginException {
+		log.info("Subserver " + subserverID + " requested video '" + video + "' from " + offset);
 		
 		if (requestedVideos.contains(video + subserverID))
 			log.error("Central server already sending video '" + video + "' to subserver " + subserverID, "Video '" + video + "' is already being sent by the central server");
 		
+		SubserverData target = subservers.get(subserverID);
+		if (target == null) log.error("Unknown subserver " + subserverID + " requested video '" + video + "'", "Subserver is not registered on the central server");
+		
+		if (replicateFromPeer(video, target, offset, present)) return videos.get(video).size();
+		
+		AtomicInteger seeds = seeding.computeIfAbsent(video, (name) -> new AtomicInteger());
+		if (seeds.incrementAndGet() > Utils.SEEDS) {
+			seeds.decrementAndGet();
+			log.error("Central server is already seeding video '" + video + "', subserver " + subserverID + " has to wait for a replica", "Video '" + video + "' is waiting for a free replica");
+		}
+		
 		requestedVideos.add(video + subserverID);
-		getUploadThread(video, subserverID).start();
+		scheduler.submit(new Upload(video, subserverID, offset, urgent, present));
+		log.info("Queued video '" + video + "' for subserver " + subserverID + (urgent ? " ahead of the backlog" : "") + ", transfers " + scheduler);
+		
+		return videos.get(video).size();
 	}
 	
-	private Thread getUploadThread(String video, int subserverID) {
-		return new Thread(() -> {
-			Video videoFile = videos.get(video);
-			SubserverInterface subserver = subservers.get(subserverID).server;
-			
-			long total = videoFile.size();
-			long uploaded = 0;
-			try (InputStream is = videoFile.read()) {
-				int readBytes;
-				byte[] b = new byte[Utils.PACKAGE_SIZE];
-				
-				while ((readBytes = is.read(b)) != -1) {
-					uploaded += readBytes;
-					log.info("Sending data for video '" + videoFile.name + "' to subserver '" + subserverID + "' [" + uploaded + "/" + total + ", " + videoFile.percent(uploaded) + "%]");
+	private boolean replicateFromPeer(String video, SubserverData target, long offset, BitSet present) {
+		Integer previous = replicationSources.get(video + target.id);
+		
+		ArrayList<SubserverData> sources = new ArrayList<>();
+		for (SubserverData source : subservers.values()) if (source.id != target.id && source.videos.contains(video)) sources.add(source);
+		sources.sort(Comparator.comparing(source -> previous != null && source.id == previous ? 0 : 1));
+		
+		for (SubserverData source : sources) {
+			try {
+				if (source.server.replicateTo(video, target.server, target.id, offset, present)) {
+					replicationSources.put(video + target.id, source.id);
+					log.info("Subserver " + source + " is replicating video '" + video + "' to subserver " + target);
 					
-					subserver.uploadCentralToSubserver(videoFile.name, new Data(b, readBytes));
+					return true;
 				}
-				
-				subserver.finalizeVideoFromCentral(videoFile.name);
 			} catch (IOException e) {
-				log.info("Failed sending video '" + video + "' to subserver " + subserverID);
-				requestedVideos.remove(video + subserverID);
+				log.info("Failed contacting subserver " + source + " for replication of video '" + video + "'");
 			}
-		});
+		}
+		
+		return false;
 	}
 	
 	@Override
-	public Room getRoomData(int roomID) {
-		log.info("Sending updated room data for room " + roomID);
+	public void videoReplicated(String video, int subserverID) {
+		log.info("Subserver " + subserverID + " has a finished copy of video '" + video + "'");
+		
+		SubserverData subserver = subservers.get(subserverID);
+		if (subserver != null) subserver.videos.add(video);
+		
+		replicationSources.remove(video + subserverID);
+	}
+	
+	@Override
+	public void videoEvicted(String video, int subserverID) {
+		log.info("Subserver " + subserverID + " evicted its copy of video '" + video + "'");
+		
+		SubserverData subserver = subservers.get(subserverID);
+		if (subserver != null) subserver.videos.remove(video);
+		
+		requestedVideos.remove(video + subserverID);
+	}
+	
+	@Override
+	public VideoSources getVideoSources(String video, int subserverID) throws LoginException {
+		Video videoFile = videos.get(video);
+		if (videoFile == null || !videoFile.finished)
+			log.error("Subserver " + subserverID + " asked for sources of unavailable video '" + video + "'", "Video '" + video + "' is not available on the central server");
+		
+		VideoSources sources = new VideoSources(videoFile.size());
+		for (SubserverData subserver : subservers.values())
+			if (subserver.id != subserverID && subserver.videos.contains(video)) sources.subservers.put(subserver.id, subserver.server);
+		
+		log.info("Subserver " + subserverID + " asked for sources of video '" + video + "' " + sources);
+		return sources;
+	}
+	
+	@Override
+	public Chunk readVideoChunk(String video, long offset) throws LoginException {
+		log.info("Sending data for video '" + video + "' from " + offset + " directly to a client");
+		
+		Video videoFile = videos.get(video);
+		if (videoFile == null || !videoFile.finished)
+			log.error("Client requested data of unavailable video '" + video + "'", "Video '" + video + "' is not available on the central server");
+		
+		// Queued with the uploads so direct pulls share the egress cap instead of going around it
+		PendingChunk pending = new PendingChunk(() -> videoFile.chunk(offset));
+		scheduler.submit(new Pull(video, pending));
+		
+		try {
+			if (pending.await(Integer.parseInt(Utils.TIMEOUT) / 2)) {
+				if (pending.chunk() == null) log.error("Failed reading video '" + video + "' at " + offset, "Couldn't read video '" + video + "' on the central server");
+				return pending.chunk();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		long retryAfter = Integer.parseInt(Utils.TIMEOUT) / 2;
+		log.info("Central server is sending too many videos " + scheduler + ", client has to retry in " + retryAfter + "ms");
+		throw new RetryException("Central server is busy, try again in " + (retryAfter + 999) / 1000 + " seconds", retryAfter);
+	}
+	
+	@Override
+	public Ticket requestVideoTicket(String video, int subserverID, long offset, long length) throws LoginException {
+		log.info("Subserver " + subserverID + " requested a ticket for video '" + video + "' [" + offset + ", " + length + "]");
+		
+		Video videoFile = videos.get(video);
+		if (videoFile == null || !videoFile.finished)
+			log.error("Subserver " + subserverID + " requested unavailable video '" + video + "'", "Video '" + video + "' is not available on the central server");
+		
+		return dataPlane.issue(video, offset, Math.max(0, Math.min(length, videoFile.size() - offset)), false);
+	}
+	
+	// A single chunk pulled by a client, urgent since someone is waiting on it
+	private static class Pull extends TransferScheduler.Transfer {
+		private final PendingChunk pending;
 		
-		Room room = rooms.get(roomID - 1);
+		Pull(String video, PendingChunk pending) {
+			super(video, -1, true);
+			this.pending = pending;
+		}
+		
+		@Override
+		int send() throws IOException {
+			return pending.send();
+		}
 		
-		if (!room.getPaused() && room.getLastUpdate() + 3500 < System.currentTimeMillis()) {
-			log.info("Unpaused room " + roomID + " not receiving updates for 4 seconds, pausing");
-			room.sync(room.getTime(), true);
+		@Override
+		void done(boolean completed) {
+			pending.done(completed);
 		}
+	}
+	
+	private class Upload extends TransferScheduler.Transfer {
+		private final BlockSender sender;
+		
+		Upload(String video, int subserverID, long offset, boolean urgent, BitSet present) {
+			super(video, subserverID, urgent);
+			
+			sender = new BlockSender(videos.get(video), subservers.get(subserverID).server, sizers.computeIfAbsent(subserverID, (id) -> new ChunkSizer()), offset, present);
+		}
+		
+		@Override
+		int send() throws IOException {
+			int sent = sender.send();
+			if (sent >= 0) log.info("Sent data for video '" + video + "' to subserver '" + subserver + "' " + sender);
+			
+			return sent;
+		}
+		
+		@Override
+		void done(boolean completed) {
+			try {
+				sender.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			// Cleared either way, a subserver that finds blocks missing or corrupted asks again
+			if (!completed) log.info("Failed sending video '" + video + "' to subserver " + subserver);
+			requestedVideos.remove(video + subserver);
+			
+			seeding.get(video).decrementAndGet();
+			log.info("Buffer pool " + BufferPool.shared);
+		}
+	}
+	
+	// Only rooms playing right now count, paused or abandoned ones don't jump the queue
+	private boolean playing(String video) {
+		long now = System.currentTimeMillis();
+		
+		return rooms.stream().anyMatch((room) -> room.video.equals(video) && !room.getPaused() && room.getLastUpdate() + Utils.ROOM_TIMEOUT >= now);
+	}
+	
+	@Override
+	public Room getRoomData(int roomID) {
+		log.info("Sending updated room data for room " + roomID);
+		
+		return rooms.get(roomID - 1);
+	}
+	
+	@Override
+	public void setRoomData(int room, long time, long at, float rate, boolean paused) {
+		long now = System.currentTimeMillis();
+		log.info("Receiving updated room data for room " + room + " [" + time + " @ " + at + ", " + rate + "x, " + paused + "], " + (now - at) + "ms old");
 		
-		return room;
+		Room roomData = rooms.get(room - 1);
+		if (roomData.sync(time, at, rate, paused, now)) publish(roomData);
 	}
 	
 	@Override
-	public void setRoomData(int room, long time, boolean paused) {
-		log.info("Receiving updated room data for room " + room + " [" + time + ", " + paused + "]");
-		rooms.get(room - 1).sync(time, paused);
+	public long time() {
+		return System.currentTimeMillis();
 	}
 	
 	@Override
@@ -367,7 +678,7 @@ public class CentralServer implements CentralServerInterface {
 		return names;
 	}
 	
-	public static void main(String[] args) throws UnknownHostException, RemoteException {
+	public static void main(String[] args) throws IOException {
 		new CentralServer(args.length > 0 ? Integer.parseInt(args[0]) : 8000, args.length > 1 && args[1].equals("nogui"));
 	}
 }
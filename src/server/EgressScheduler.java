@@ -0,0 +1,180 @@
+package server;
+
+import shared.Utils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// Deficit round robin over per-client queues, every client with pending chunks gets its share before anyone gets more
+class EgressScheduler {
+	abstract static class Transfer {
+		final String video;
+		final String client;
+		
+		private volatile boolean cancelled = false;
+		
+		Transfer(String video, String client) {
+			this.video = video;
+			this.client = client;
+		}
+		
+		void cancel() {
+			cancelled = true;
+		}
+		
+		// Sends the next chunk and returns its size, -1 once the whole transfer is done
+		abstract int send() throws IOException;
+		
+		abstract long remaining();
+		
+		abstract void done(boolean completed);
+	}
+	
+	private static class Queue {
+		final String client;
+		final ArrayDeque<Transfer> transfers = new ArrayDeque<>();
+		
+		long deficit = Utils.PACKAGE_SIZE;
+		boolean busy = false;
+		
+		Queue(String client) {
+			this.client = client;
+		}
+	}
+	
+	private final HashMap<String, Queue> queues = new HashMap<>();
+	private final ArrayDeque<Queue> ring = new ArrayDeque<>();
+	private final HashSet<Transfer> active = new HashSet<>();
+	
+	private final Throttle egress = new Throttle(Utils.CLIENT_EGRESS);
+	
+	EgressScheduler(int workers) {
+		for (int i = 0; i < workers; i++) getWorkerThread().start();
+	}
+	
+	synchronized boolean submit(Transfer transfer) {
+		if (streams() >= Utils.CLIENT_STREAMS) return false;
+		
+		active.add(transfer);
+		
+		Queue queue = queues.computeIfAbsent(transfer.client, Queue::new);
+		queue.transfers.addLast(transfer);
+		if (!queue.busy && queue.transfers.size() == 1) ring.addLast(queue);
+		
+		notifyAll();
+		return true;
+	}
+	
+	// Estimated time until a stream finishes and frees a place for a new one
+	synchronized long retryAfter() {
+		if (Utils.CLIENT_EGRESS <= 0 || active.isEmpty()) return 5000;
+		
+		long shortest = Long.MAX_VALUE;
+		for (Transfer transfer : active) shortest = Math.min(shortest, transfer.remaining());
+		
+		return Math.max(1000, Math.min(60000, shortest * streams() * 1000 / Utils.CLIENT_EGRESS));
+	}
+	
+	private int streams() {
+		int streams = 0;
+		for (Transfer transfer : active) if (!transfer.cancelled) streams++;
+		
+		return streams;
+	}
+	
+	private synchronized Queue next() throws InterruptedException {
+		while (ring.isEmpty()) wait();
+		
+		while (ring.getFirst().deficit <= 0) {
+			Queue queue = ring.removeFirst();
+			queue.deficit += Utils.PACKAGE_SIZE;
+			ring.addLast(queue);
+		}
+		
+		Queue queue = ring.removeFirst();
+		queue.busy = true;
+		
+		return queue;
+	}
+	
+	private synchronized void release(Queue queue, Transfer transfer, int sent) {
+		queue.busy = false;
+		queue.deficit -= Math.max(sent, 0);
+		
+		if (sent >= 0 && !transfer.cancelled) queue.transfers.addLast(transfer);
+		else active.remove(transfer);
+		
+		if (queue.transfers.isEmpty()) {
+			queues.remove(queue.client, queue);
+			return;
+		}
+		
+		if (queue.deficit > 0) {
+			ring.addFirst(queue);
+		} else {
+			queue.deficit += Utils.PACKAGE_SIZE;
+			ring.addLast(queue);
+		}
+		
+		notifyAll();
+	}
+	
+	private synchronized Transfer take(Queue queue) {
+		return queue.transfers.removeFirst();
+	}
+	
+	private Thread getWorkerThread() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				Queue queue;
+				
+				try {
+					queue = next();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				Transfer transfer = take(queue);
+				int sent = -1;
+				
+				try {
+					if (transfer.cancelled) {
+						transfer.done(false);
+						continue;
+					}
+					
+					sent = transfer.send();
+					if (sent < 0) {
+						transfer.done(true);
+						continue;
+					}
+					
+					egress.acquire(sent);
+				} catch (IOException e) {
+					transfer.done(false);
+				} catch (RuntimeException e) {
+					// RMI hands remote runtime exceptions back as they are, they end the transfer and not the worker
+					e.printStackTrace();
+					sent = -1;
+					transfer.done(false);
+				} catch (InterruptedException e) {
+					sent = -1;
+					transfer.done(false);
+					return;
+				} finally {
+					release(queue, transfer, sent);
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "[" + streams() + " streams, " + queues.size() + " clients]";
+	}
+}
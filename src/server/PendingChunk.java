@@ -0,0 +1,56 @@
+package server;
+
+import shared.Chunk;
+import shared.Utils;
+
+import java.io.IOException;
+
+// One chunk a scheduler worker reads for an RMI call waiting on it, so pulls queue with every other transfer
+class PendingChunk {
+	interface Read {
+		Chunk read() throws IOException;
+	}
+	
+	private final Read read;
+	
+	private volatile Chunk chunk;
+	private volatile boolean abandoned = false;
+	private boolean finished = false;
+	
+	PendingChunk(Read read) {
+		this.read = read;
+	}
+	
+	// Reads the chunk on the first call and returns its size, -1 after that or once the caller stopped waiting
+	int send() throws IOException {
+		if (chunk != null || abandoned) return -1;
+		
+		chunk = read.read();
+		return chunk.getSize();
+	}
+	
+	long remaining() {
+		return chunk == null && !abandoned ? Utils.PACKAGE_SIZE : 0;
+	}
+	
+	synchronized void done(boolean completed) {
+		if (!completed) chunk = null;
+		
+		finished = true;
+		notifyAll();
+	}
+	
+	// Returns whether the worker got to it in time, the chunk is null if reading it failed
+	synchronized boolean await(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		for (long left = timeout; !finished && left > 0; left = deadline - System.currentTimeMillis()) wait(left);
+		if (!finished) abandoned = true;
+		
+		return finished;
+	}
+	
+	Chunk chunk() {
+		return chunk;
+	}
+}
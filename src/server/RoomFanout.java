@@ -0,0 +1,47 @@
+package server;
+
+import shared.RoomState;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Pushes room states without waiting on the targets, a target that is behind only gets the newest state of each room
+class RoomFanout<T> {
+	interface Push<T> {
+		void push(T target, RoomState state) throws RemoteException;
+	}
+	
+	private final Push<T> push;
+	private final ThreadPoolExecutor executor;
+	
+	private final ConcurrentHashMap<Map.Entry<T, Integer>, RoomState> pending = new ConcurrentHashMap<>();
+	
+	RoomFanout(int threads, Push<T> push) {
+		this.push = push;
+		
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	void send(T target, RoomState state) {
+		Map.Entry<T, Integer> key = Map.entry(target, state.room);
+		if (pending.put(key, state) == null) executor.execute(() -> deliver(key));
+	}
+	
+	private void deliver(Map.Entry<T, Integer> key) {
+		RoomState state;
+		while ((state = pending.get(key)) != null) {
+			try {
+				push.push(key.getKey(), state);
+			} catch (RemoteException | RuntimeException ignored) {
+				// Targets that miss a push catch up on their next poll
+			}
+			
+			if (pending.remove(key, state)) return;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package server;
+
+import shared.Utils;
+import shared.Video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One reader per video shared by every client streaming it, the latest chunks stay cached for the clients right behind
+class SharedReader {
+	// Bytes cached by every reader together, kept under READ_CACHE_BYTES
+	private static final AtomicLong cached = new AtomicLong();
+	
+	private final Video video;
+	private final LinkedHashMap<Integer, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private FileChannel channel;
+	private int subscribers = 0;
+	
+	private long reads = 0;
+	private long hits = 0;
+	
+	SharedReader(Video video) {
+		this.video = video;
+	}
+	
+	SharedReader subscribe() {
+		subscribers++;
+		return this;
+	}
+	
+	SharedReader unsubscribe() {
+		if (--subscribers > 0) return this;
+		
+		close();
+		return null;
+	}
+	
+	synchronized byte[] read(int sequence) throws IOException {
+		byte[] data = window.get(sequence);
+		if (data != null) {
+			hits++;
+			return data;
+		}
+		
+		if (channel == null) channel = FileChannel.open(Path.of(Video.destination + video.name), StandardOpenOption.READ);
+		
+		long position = (long) sequence * Utils.PACKAGE_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(Utils.PACKAGE_SIZE, video.size() - position)));
+		while (buffer.hasRemaining()) if (channel.read(buffer, position + buffer.position()) == -1) break;
+		
+		data = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+		reads++;
+		
+		if (data.length > 0) cache(sequence, data);
+		return data;
+	}
+	
+	// Makes room by dropping this reader's oldest chunks, without any to drop the chunk is passed on uncached
+	private void cache(int sequence, byte[] data) {
+		Iterator<byte[]> eldest = window.values().iterator();
+		while (eldest.hasNext() && (window.size() >= Utils.READ_WINDOW || cached.get() + data.length > Utils.READ_CACHE_BYTES)) {
+			cached.addAndGet(-eldest.next().length);
+			eldest.remove();
+		}
+		
+		if (cached.addAndGet(data.length) > Utils.READ_CACHE_BYTES) {
+			cached.addAndGet(-data.length);
+			return;
+		}
+		
+		window.put(sequence, data);
+	}
+	
+	synchronized void close() {
+		try {
+			if (channel != null) channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		channel = null;
+		
+		for (byte[] data : window.values()) cached.addAndGet(-data.length);
+		window.clear();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "'" + video.name + "' [" + reads + " reads, " + hits + " hits, " + window.size() + " cached]";
+	}
+}
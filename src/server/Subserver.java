@@ -1,18 +1,31 @@
 package server;
 
-import shared.Data;
+import shared.BufferPool;
+import shared.Chunk;
+import shared.ChunkSizer;
+import shared.ChunkStore;
+import shared.Clock;
+import shared.DataPlane;
+import shared.Manifest;
+import shared.RetryException;
 import shared.Room;
+import shared.RoomState;
+import shared.Ticket;
 import shared.Utils;
 import shared.Video;
+import shared.VideoCache;
+import shared.Window;
+import shared.WriteBehind;
 import shared.interfaces.CentralServerInterface;
 import shared.interfaces.SubserverInterface;
 import shared.remote.ClientData;
 import shared.remote.SubserverData;
+import shared.remote.VideoSources;
 
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.rmi.NotBoundException;
@@ -20,10 +33,16 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Subserver extends UnicastRemoteObject implements SubserverInterface, Serializable {
+	private static final long FETCH_RETRY = 2000;
+	
 	static {
 		if (System.getSecurityManager() == null) System.setSecurityManager(new SecurityManager());
 		System.setProperty("sun.rmi.transport.tcp.responseTimeout", Utils.TIMEOUT);
@@ -36,14 +55,41 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 	
 	private final Logger log;
 	
-	private final HashMap<String, Video> videos = new HashMap<>();
-	private final ConcurrentHashMap<String, Thread> requestedVideos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Video> videos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Stream> requestedVideos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SharedReader> readers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Map.Entry<String, String>, Long> pulling = new ConcurrentHashMap<>();
+	private final EgressScheduler egress = new EgressScheduler(Utils.CLIENT_TRANSFERS);
+	private final ConcurrentHashMap<String, ChunkSizer> sizers = new ConcurrentHashMap<>();
+	private final ChunkStore store = new ChunkStore();
+	private final ConcurrentHashMap<String, Thread> fetchingVideos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+	private final Set<String> requesting = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, Thread> replicatingVideos = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Window> uploads = new ConcurrentHashMap<>();
+	
+	private final DataPlane dataPlane;
+	
+	private volatile HashMap<String, ClientData> users = new HashMap<>();
+	private final ConcurrentHashMap<Integer, Room> rooms = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Long> refreshed = new ConcurrentHashMap<>();
+	private final RoomFanout<String> fanout = new RoomFanout<>(Utils.ROOM_PUSHERS, (username, state) -> {
+		ClientData client = users.get(username);
+		if (client != null) client.client.roomUpdated(state);
+	});
 	
-	public Subserver(String centralHost, int centralPort, boolean nogui) throws RemoteException {
+	private final VideoCache cache = new VideoCache(Utils.CACHE_BYTES, Set.copyOf(Arrays.asList(Utils.PINNED.split(","))));
+	private volatile ArrayList<String> catalog = new ArrayList<>();
+	
+	public Subserver(String centralHost, int centralPort, boolean nogui) throws IOException {
 		log = new Logger(nogui ? System.out::print : (new ServerGUI("Subserver [" + centralHost + ":" + centralPort + "]", "subserver"))::print);
 		
+		dataPlane = new DataPlane(InetAddress.getLocalHost().getHostAddress(), (ticket, transferred) -> log.info("Sending data for video '" + ticket.video + "' over the data plane [" + transferred + "/" + ticket.length + "]"), (ticket) -> cache.release(ticket.video));
+		log.info("Data plane started on port " + dataPlane.getPort());
+		
 		log.info("Searching for central server on " + centralHost + ":" + centralPort);
 		getSyncThread(centralHost, centralPort).start();
+		if (Utils.SCRUB_MILLIS >= 0) getScrubThread().start();
 	}
 	
 	private Thread getSyncThread(String centralHost, int centralPort) {
@@ -61,6 +107,8 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 						Video.setDestination("uploads/subserver/" + id + "/");
 						
 						while (true) {
+							Clock.central.sync(server::time);
+							log.info("Central server clock " + Clock.central);
 							syncVideos();
 							syncUsers();
 							
@@ -77,35 +125,215 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 		});
 	}
 	
+	// Slowly re-hashes finished videos one at a time so playback and transfers keep the disk and cores
+	private Thread getScrubThread() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				Utils.sleep(Utils.SCRUB_MILLIS);
+				if (server == null) continue;
+				
+				for (Video videoFile : videos.values()) {
+					if (!videoFile.finished || fetchingVideos.containsKey(videoFile.name)) continue;
+					
+					try {
+						scrub(videoFile);
+					} catch (LoginException e) {
+						log.info(e.getMessage());
+					} catch (IOException e) {
+						log.info("Couldn't scrub video '" + videoFile.name + "'");
+					}
+					
+					Utils.sleep(1000);
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	}
+	
+	private void scrub(Video videoFile) throws IOException, LoginException {
+		Manifest expected = server.getManifest(videoFile.name);
+		Manifest manifest = Manifest.of(videoFile.name, Path.of(Video.destination + videoFile.name), videoFile.size(), false);
+		
+		BitSet corrupted = manifest.corrupted(expected);
+		if (corrupted.isEmpty()) return;
+		
+		synchronized (videoFile.name.intern()) {
+			if (videos.get(videoFile.name) != videoFile) return;
+			
+			log.info("Scrubbing found " + corrupted.cardinality() + " corrupted blocks " + corrupted + " in video '" + videoFile.name + "', fetching them again");
+			
+			server.videoEvicted(videoFile.name, id);
+			store.remove(videoFile.name);
+			manifests.put(videoFile.name, expected);
+			invalidate(videoFile, manifest, corrupted);
+		}
+		
+		requestFromCentral(videoFile.name);
+	}
+	
 	private void syncVideos() throws RemoteException {
-		log.info("Checking for new videos");
+		log.info("Checking for new videos, buffer pool " + BufferPool.shared);
 		ArrayList<String> videoNames = server.getAllVideoNames();
+		catalog = new ArrayList<>(videoNames);
+		
 		for (Video video : videos.values()) if (video.finished) videoNames.remove(video.name);
+		if (Utils.CACHE_BYTES >= 0) videoNames.removeIf((videoName) -> !cache.demanded(videoName));
 		
-		for (String videoName : videoNames) {
-			try {
-				log.info("Requesting video " + videoName);
-				
-				synchronized (videoName.intern()) {
-					server.requestVideoFromCentral(videoName, id);
+		for (String videoName : videoNames) requestFromCentral(videoName);
+		
+		expirePulls();
+		expireUploads();
+		enforceBudget();
+	}
+	
+	private void requestFromCentral(String videoName) {
+		if (fetchingVideos.containsKey(videoName) || !requesting.add(videoName)) return;
+		
+		try {
+			// Fetched once per fetch, later rounds only ask for what is still missing
+			Manifest manifest = manifests.get(videoName);
+			boolean fill = manifest == null;
+			if (fill) {
+				manifest = server.getManifest(videoName);
+				manifests.put(videoName, manifest);
+			}
+			
+			Video videoFile;
+			String identical = null;
+			
+			synchronized (videoName.intern()) {
+				videoFile = videos.get(videoName);
+				if (videoFile == null) {
 					Files.deleteIfExists(Path.of("uploads/subserver/" + id + "/" + videoName));
-					videos.put(videoName, new Video(videoName, null));
+					videoFile = new Video(videoName, null);
+					
+					identical = store.identical(manifest);
+					if (identical != null) {
+						Files.createLink(Path.of(Video.destination + videoName), Path.of(Video.destination + identical));
+						videoFile.received(0, manifest.length);
+					}
+				}
+				
+				videoFile.allocate(manifest.length);
+				videos.put(videoName, videoFile);
+			}
+			
+			if (identical != null) {
+				log.info("Video '" + videoName + "' has the same content as local video '" + identical + "', linked it instead of fetching it");
+				finalizeVideoFromCentral(videoName);
+				return;
+			}
+			
+			// Copying blocks out of other local videos happens outside the lock, it can take a while
+			BitSet present = fill ? store.fill(videoFile, manifest) : present(videoFile, manifest);
+			
+			if (present.cardinality() == manifest.hashes.length) {
+				log.info("Every block of video '" + videoName + "' was already on the subserver");
+				finalizeVideoFromCentral(videoName);
+				return;
+			}
+			
+			long offset = videoFile.received.contiguous();
+			log.info("Requesting video " + videoName + " from " + offset + ", " + present.cardinality() + "/" + manifest.hashes.length + " blocks found locally");
+			
+			if (Utils.DATA_PLANE) getFetchThread(videoFile, manifest, present).start();
+			else videoFile.allocate(server.requestVideoFromCentral(videoName, id, offset, cache.demanded(videoName), present));
+		} catch (LoginException e) {
+			log.info(e.getMessage());
+		} catch (IOException e) {
+			log.info("Error requesting video from central");
+		} finally {
+			requesting.remove(videoName);
+		}
+	}
+	
+	private static BitSet present(Video videoFile, Manifest manifest) {
+		BitSet present = new BitSet(manifest.hashes.length);
+		if (manifest.blockSize != Utils.PACKAGE_SIZE) return present;
+		
+		for (int block = 0; block < manifest.hashes.length; block++)
+			if (videoFile.received.covers(manifest.start(block), manifest.end(block))) present.set(block);
+		
+		return present;
+	}
+	
+	private void enforceBudget() {
+		if (Utils.CACHE_BYTES < 0) return;
+		
+		for (Video videoFile : cache.victims(videos.values())) {
+			synchronized (videoFile.name.intern()) {
+				if (!cache.evictable(videoFile) || !videos.remove(videoFile.name, videoFile)) continue;
+				
+				videoFile.close();
+				cache.forget(videoFile.name);
+				store.remove(videoFile.name);
+				manifests.remove(videoFile.name);
+				
+				try {
+					Files.deleteIfExists(Path.of(Video.destination + videoFile.name));
+					log.info("Evicted video '" + videoFile.name + "' from the cache");
+					
+					server.videoEvicted(videoFile.name, id);
+				} catch (IOException e) {
+					log.info("Failed evicting video '" + videoFile.name + "'");
+				}
+			}
+		}
+	}
+	
+	// One ticket per run of missing blocks, blocks already present aren't sent again
+	private Thread getFetchThread(Video videoFile, Manifest manifest, BitSet present) {
+		Thread thread = new Thread(() -> {
+			try {
+				for (int block = present.nextClearBit(0); block < manifest.hashes.length; ) {
+					int next = present.nextSetBit(block);
+					if (next < 0) next = manifest.hashes.length;
+					
+					long start = manifest.start(block);
+					Ticket ticket = server.requestVideoTicket(videoFile.name, id, start, manifest.end(next - 1) - start);
+					DataPlane.fetch(ticket, Path.of(Video.destination + ticket.video), (transferred) -> {
+						videoFile.received(ticket.offset, ticket.offset + transferred);
+						log.info("Central server sending data '" + ticket.video + "' over the data plane [" + (ticket.offset + transferred) + "/" + (ticket.offset + ticket.length) + "]");
+					});
+					
+					block = present.nextClearBit(next);
 				}
+				
+				finalizeVideoFromCentral(videoFile.name);
 			} catch (LoginException e) {
 				log.info(e.getMessage());
 			} catch (IOException e) {
-				log.info("Error requesting video from central");
+				log.info("Failed fetching video '" + videoFile.name + "' from the central server");
 			}
-		}
+			
+			fetchingVideos.remove(videoFile.name, Thread.currentThread());
+		});
+		
+		fetchingVideos.put(videoFile.name, thread);
+		return thread;
 	}
 	
 	private void syncUsers() throws RemoteException {
 		log.info("Checking for my users");
 		ArrayList<ClientData> users = server.getUsers(id);
 		
+		HashMap<String, ClientData> byName = new HashMap<>();
+		for (ClientData client : users) byName.put(client.username, client);
+		this.users = byName;
+		
 		for (ClientData client : users) getUserConnectionThread(client).start();
 	}
 	
+	private Thread getRequestThread(String video) {
+		Thread thread = new Thread(() -> requestFromCentral(video));
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
 	private Thread getUserConnectionThread(ClientData client) {
 		return new Thread(() -> {
 			try {
@@ -127,40 +355,188 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 		this.id = id;
 		this.wakeupTime = wakeupTime;
 		
+		for (Video video : videos.values()) video.close();
 		videos.clear();
-		for (Thread requestedThread : requestedVideos.values()) requestedThread.interrupt();
+		store.clear();
+		rooms.clear();
+		refreshed.clear();
+		for (Stream stream : requestedVideos.values()) stream.cancel();
+		for (Thread fetchingThread : fetchingVideos.values()) fetchingThread.interrupt();
+		for (Thread replicatingThread : replicatingVideos.values()) replicatingThread.interrupt();
 	}
 	
 	@Override
-	public void uploadVideoDataToCentral(String video, Data data, String owner) throws LoginException {
-		log.info("Uploading data for video '" + video + "' by user '" + owner + "'");
+	public void uploadVideoDataToCentral(Chunk chunk, String owner) throws LoginException {
+		log.info("Uploading data " + chunk + " by user '" + owner + "'");
+		
+		Window window = uploads.computeIfAbsent(chunk.getVideo(), (video) -> new Window(Utils.WINDOW * Utils.UPLOAD_STREAMS));
 		
 		try {
-			server.uploadVideoDataToCentral(video, data, owner);
-		} catch (IOException e) {
-			log.error("Error uploading video '" + video + "' by user '" + owner + "' to the central server", "Error uploading video to the central server");
+			window.submit(() -> {
+				try {
+					server.uploadVideoDataToCentral(chunk, owner);
+				} catch (IOException | LoginException e) {
+					chunk.release();
+					throw e;
+				}
+				
+				keepUploadedData(chunk);
+			});
+		} catch (LoginException e) {
+			chunk.release();
+			if (uploads.remove(chunk.getVideo(), window)) window.close();
+			throw e;
+		} catch (IOException | InterruptedException e) {
+			chunk.release();
+			if (uploads.remove(chunk.getVideo(), window)) window.close();
+			log.error("Error uploading video '" + chunk.getVideo() + "' by user '" + owner + "' to the central server", "Error uploading video to the central server");
+		}
+	}
+	
+	private void keepUploadedData(Chunk chunk) {
+		Video videoFile = videos.get(chunk.getVideo());
+		
+		try {
+			if (videoFile != null && !videoFile.finished) WriteBehind.shared.write(videoFile, chunk);
+			else chunk.release();
+		} catch (InterruptedException e) {
+			chunk.release();
 		}
 	}
 	
 	@Override
-	public void uploadCentralToSubserver(String video, Data data) {
-		log.info("Central server sending data '" + video + "'");
-		synchronized (video.intern()) {
-			videos.get(video).write(data);
+	public void uploadCentralToSubserver(Chunk chunk) throws RemoteException {
+		log.info("Central server sending data " + chunk);
+		
+		// Checked here, the write behind thread has nobody to report an unknown video to
+		Video videoFile = videos.get(chunk.getVideo());
+		if (videoFile == null) {
+			chunk.release();
+			throw new RemoteException("Video '" + chunk.getVideo() + "' isn't being fetched by subserver " + id);
+		}
+		
+		try {
+			WriteBehind.shared.write(videoFile, chunk);
+		} catch (InterruptedException e) {
+			chunk.release();
+			throw new RemoteException("Interrupted while queueing data " + chunk);
+		}
+	}
+	
+	@Override
+	public void finalizeVideoFromCentral(String video) throws RemoteException {
+		try {
+			WriteBehind.shared.flush();
+		} catch (InterruptedException e) {
+			throw new RemoteException("Interrupted while finalizing video '" + video + "'");
+		}
+		
+		Video videoFile = videos.get(video);
+		if (videoFile == null) throw new RemoteException("Video '" + video + "' isn't being fetched by subserver " + id);
+		
+		if (!videoFile.received.covers(0, videoFile.size())) {
+			log.info("Video '" + video + "' is missing data " + videoFile.received + ", it will be requested again");
+			return;
+		}
+		
+		getVerifyThread(videoFile, null).start();
+	}
+	
+	// Hashes the received video off the calling thread, a null manifest is fetched from the central server
+	private Thread getVerifyThread(Video videoFile, Manifest expected) {
+		Thread thread = new Thread(() -> {
+			try {
+				Manifest manifest = Manifest.of(videoFile);
+				Manifest known = expected != null ? expected : manifests.get(videoFile.name);
+				BitSet corrupted = manifest.corrupted(known != null ? known : server.getManifest(videoFile.name));
+				
+				if (!corrupted.isEmpty()) {
+					invalidate(videoFile, manifest, corrupted);
+					log.info("Video '" + videoFile.name + "' has " + corrupted.cardinality() + " corrupted blocks " + corrupted + ", they will be requested again");
+				} else {
+					log.info("Finalized video '" + videoFile.name + "'");
+					videoFile.finish();
+					manifests.remove(videoFile.name);
+					cache.fetched(videoFile.name);
+					
+					reportReplica(videoFile.name, manifest);
+				}
+			} catch (LoginException e) {
+				log.info(e.getMessage());
+			} catch (IOException e) {
+				log.info("Couldn't verify video '" + videoFile.name + "'");
+			}
+			
+			fetchingVideos.remove(videoFile.name, Thread.currentThread());
+		});
+		
+		fetchingVideos.put(videoFile.name, thread);
+		return thread;
+	}
+	
+	private void invalidate(Video videoFile, Manifest manifest, BitSet corrupted) {
+		for (int block = corrupted.nextSetBit(0); block >= 0; block = corrupted.nextSetBit(block + 1))
+			videoFile.invalidate(manifest.start(block), manifest.end(block));
+	}
+	
+	private void reportReplica(String video, Manifest manifest) {
+		store.add(manifest);
+		log.info("Indexed the blocks of video '" + video + "', chunk store " + store);
+		
+		try {
+			server.videoReplicated(video, id);
+		} catch (IOException e) {
+			log.info("Couldn't report finished video '" + video + "' to the central server");
 		}
 	}
 	
 	@Override
-	public void finalizeVideoFromCentral(String video) {
-		log.info("Finalized video '" + video + "'");
-		videos.get(video).finished = true;
+	public synchronized boolean replicateTo(String video, SubserverInterface target, int targetID, long offset, BitSet present) {
+		if (replicatingVideos.containsKey(video + targetID)) return true;
+		
+		Video videoFile = videos.get(video);
+		if (videoFile == null || !videoFile.finished || replicatingVideos.size() >= Utils.FANOUT) return false;
+		
+		log.info("Replicating video '" + video + "' to subserver " + targetID + " from " + offset);
+		
+		cache.acquire(video);
+		
+		Thread thread = getReplicationThread(videoFile, target, targetID, offset, present);
+		replicatingVideos.put(video + targetID, thread);
+		thread.start();
+		
+		return true;
+	}
+	
+	private Thread getReplicationThread(Video videoFile, SubserverInterface target, int targetID, long offset, BitSet present) {
+		return new Thread(() -> {
+			ChunkSizer sizer = sizers.computeIfAbsent("subserver " + targetID, (name) -> new ChunkSizer());
+			
+			try (BlockSender sender = new BlockSender(videoFile, target, sizer, offset, present)) {
+				while (!Thread.currentThread().isInterrupted() && sender.send() >= 0)
+					log.info("Replicated data for video '" + videoFile.name + "' to subserver '" + targetID + "' " + sender);
+			} catch (IOException e) {
+				log.info("Failed replicating video '" + videoFile.name + "' to subserver " + targetID);
+			} finally {
+				cache.release(videoFile.name);
+			}
+			
+			replicatingVideos.remove(videoFile.name + targetID);
+		});
 	}
 	
 	@Override
 	public Room getRoomData(int room) throws LoginException {
 		log.info("Receiving updated room data for room '" + room + "'");
+		
+		Room local = rooms.get(room);
+		if (local != null && refreshed.getOrDefault(room, 0L) + Utils.ROOM_POLL > System.currentTimeMillis()) return local;
+		
 		try {
-			return server.getRoomData(room);
+			Room roomData = replicate(server.getRoomData(room));
+			refreshed.put(room, System.currentTimeMillis());
+			
+			return roomData;
 		} catch (IOException e) {
 			log.error("No connection to the central server while getting data for room '" + room + "'", "Couldn't get the room data from central server!");
 		}
@@ -168,16 +544,39 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 		return null;
 	}
 	
+	private Room replicate(Room room) {
+		return rooms.merge(room.getID(), room, (local, fresh) -> fresh.getVersion() >= local.getVersion() ? fresh : local);
+	}
+	
 	@Override
-	public void setRoomData(int room, long time, boolean paused) throws LoginException {
-		log.info("Sending updated room data for room " + room + " [" + time + ", " + paused + "]");
+	public void setRoomData(int room, long time, long at, float rate, boolean paused) throws LoginException {
+		log.info("Sending updated room data for room " + room + " [" + time + " @ " + at + ", " + rate + "x, " + paused + "]");
 		try {
-			server.setRoomData(room, time, paused);
+			server.setRoomData(room, time, at, rate, paused);
 		} catch (IOException e) {
 			log.error("No connection to the central server while getting data for room '" + room + "'", "Couldn't get the room data to central server!");
 		}
 	}
 	
+	@Override
+	public void roomUpdated(RoomState state) {
+		Room room = rooms.get(state.room);
+		
+		try {
+			if (room == null) room = getRoomData(state.room);
+			else if (!room.apply(state)) return;
+		} catch (LoginException e) {
+			log.info(e.getMessage());
+			return;
+		}
+		
+		refreshed.put(state.room, System.currentTimeMillis());
+		
+		RoomState current = room.state();
+		log.info("Pushing " + current + " to its viewers");
+		for (String viewer : room.viewers) if (users.containsKey(viewer)) fanout.send(viewer, current);
+	}
+	
 	@Override
 	public void createRoom(Room room) throws LoginException {
 		log.info("Sending request for room creation " + room);
@@ -194,12 +593,18 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 		return wakeupTime;
 	}
 	
+	@Override
+	public long time() {
+		return Clock.central.now();
+	}
+	
 	@Override
 	public ArrayList<String> getAllVideoNames() {
 		log.info("User requested all video names");
 		
 		ArrayList<String> names = new ArrayList<>();
-		for (Video video : videos.values()) if (video.finished) names.add(video.name);
+		if (Utils.CACHE_BYTES >= 0) names.addAll(catalog);
+		else for (Video video : videos.values()) if (video.finished) names.add(video.name);
 		
 		log.info("Received request for all video names " + names);
 		
@@ -210,7 +615,10 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 	public ArrayList<Room> getRooms(String username) throws LoginException {
 		log.info("User '" + username + "' requested all rooms he is a part of");
 		try {
-			return server.getRooms(username);
+			ArrayList<Room> userRooms = server.getRooms(username);
+			for (Room room : userRooms) replicate(room);
+			
+			return userRooms;
 		} catch (IOException e) {
 			log.error("No connection to the central server while getting rooms for user '" + username + "'", "Couldn't get rooms from central server!");
 		}
@@ -232,67 +640,344 @@ public class Subserver extends UnicastRemoteObject implements SubserverInterface
 	}
 	
 	@Override
-	public void requestVideoFromSubserver(String video, ClientData client) throws LoginException {
-		log.info("User '" + client.username + "' requested video '" + video + "'");
+	public long requestVideoFromSubserver(String video, ClientData client, long offset) throws LoginException {
+		log.info("User '" + client.username + "' requested video '" + video + "' from " + offset);
 		
 		if (requestedVideos.containsKey(video + client.username))
 			log.error("Subserver already sending video '" + video + "' to client '" + client.username + "'", "Video '" + video + "' is already being sent");
 		
-		Thread thread = getUploadThread(video, client);
-		requestedVideos.put(video + client.username, thread);
-		thread.start();
+		synchronized (video.intern()) {
+			Video videoFile = available(video);
+			
+			Stream stream = new Stream(video, client, offset);
+			requestedVideos.put(video + client.username, stream);
+			
+			if (!egress.submit(stream)) {
+				stream.done(false);
+				
+				long retryAfter = egress.retryAfter();
+				log.info("Subserver is sending too many videos " + egress + ", user '" + client.username + "' has to retry in " + retryAfter + "ms");
+				throw new RetryException("Subserver is busy, try again in " + (retryAfter + 999) / 1000 + " seconds", retryAfter);
+			}
+			
+			return videoFile.size();
+		}
 	}
 	
-	private Thread getUploadThread(String video, ClientData client) {
-		return new Thread(() -> {
-			Video videoFile = videos.get(video);
+	@Override
+	public void seekVideo(String video, ClientData client, long offset) throws LoginException {
+		log.info("User '" + client.username + "' moved the download of video '" + video + "' to " + offset);
+		
+		Stream previous = requestedVideos.remove(video + client.username);
+		if (previous != null) previous.cancel();
+		
+		requestVideoFromSubserver(video, client, offset);
+	}
+	
+	@Override
+	public VideoSources getVideoSources(String video) throws LoginException {
+		log.info("User requested sources of video '" + video + "'");
+		
+		try {
+			return server.getVideoSources(video, id);
+		} catch (IOException e) {
+			log.error("No connection to the central server while getting sources of video '" + video + "'", "Couldn't get video sources from central server!");
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public Chunk readVideoChunk(String video, ClientData client, long offset) throws LoginException {
+		log.info("User '" + client.username + "' pulled data for video '" + video + "' from " + offset);
+		
+		Video videoFile = available(video);
+		if (videoFile == null || !videoFile.finished)
+			log.error("User '" + client.username + "' requested unavailable video '" + video + "'", "Video '" + video + "' is not available on the subserver");
+		
+		// The client stays subscribed between pulls so its next chunks come out of the shared reader's window
+		Map.Entry<String, String> session = Map.entry(video, client.username);
+		pulling.compute(session, (key, last) -> {
+			if (last == null) {
+				cache.acquire(video);
+				readers.compute(video, (name, shared) -> (shared == null ? new SharedReader(videoFile) : shared).subscribe());
+			}
 			
-			long total = videoFile.size();
-			long uploaded = 0;
-			try (InputStream is = videoFile.read()) {
-				int readBytes;
-				byte[] b = new byte[Utils.PACKAGE_SIZE];
-				
-				while (!Thread.currentThread().isInterrupted() && (readBytes = is.read(b)) != -1) {
-					uploaded += readBytes;
-					log.info("Sending data for video '" + videoFile.name + "' to user '" + client.username + "' [" + uploaded + "/" + total + ", " + videoFile.percent(uploaded) + "%]");
-					
-					client.client.uploadSubserverToClient(videoFile.name, new Data(b, readBytes));
-				}
+			return System.currentTimeMillis();
+		});
+		
+		SharedReader reader = readers.get(video);
+		PendingChunk pending = new PendingChunk(() -> readChunk(reader, video, offset));
+		
+		Pull pull = new Pull(video, client.username, pending);
+		if (!egress.submit(pull)) {
+			long retryAfter = egress.retryAfter();
+			log.info("Subserver is sending too many videos " + egress + ", user '" + client.username + "' has to retry in " + retryAfter + "ms");
+			throw new RetryException("Subserver is busy, try again in " + (retryAfter + 999) / 1000 + " seconds", retryAfter);
+		}
+		
+		try {
+			if (pending.await(Integer.parseInt(Utils.TIMEOUT) / 2) && pending.chunk() != null) return pending.chunk();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		pull.cancel();
+		log.error("Failed reading video '" + video + "' at " + offset, "Couldn't read video '" + video + "' on the subserver");
+		
+		return null;
+	}
+	
+	// Uploads a client abandoned without finalizing give back their window and its threads
+	private void expireUploads() {
+		uploads.forEach((video, window) -> {
+			if (!window.expired() || !uploads.remove(video, window)) return;
+			
+			log.info("Upload of video '" + video + "' was abandoned, closing its window");
+			window.close();
+		});
+	}
+	
+	private void expirePulls() {
+		long expired = System.currentTimeMillis() - Integer.parseInt(Utils.TIMEOUT);
+		
+		for (Map.Entry<String, String> session : pulling.keySet()) {
+			pulling.computeIfPresent(session, (key, last) -> {
+				if (last > expired) return last;
 				
-				if (!Thread.currentThread().isInterrupted()) client.client.finalizeVideo(videoFile.name);
-			} catch (IOException e) {
-				log.info("Failed sending video '" + video + "' to client '" + client.username + "'");
+				readers.computeIfPresent(key.getKey(), (name, shared) -> shared.unsubscribe());
+				cache.release(key.getKey());
+				return null;
+			});
+		}
+	}
+	
+	private Video available(String video) throws LoginException {
+		Video videoFile = videos.get(video);
+		
+		if (Utils.CACHE_BYTES >= 0 && (videoFile == null || !videoFile.finished)) {
+			cache.demand(video);
+			// The fetch can outlast the client's call, it answers right away and fetches on its own thread
+			if (!fetchingVideos.containsKey(video) && !requesting.contains(video)) getRequestThread(video).start();
+			
+			log.info("Video '" + video + "' is not cached yet, fetching it from the central server");
+			throw new RetryException("Video '" + video + "' is being fetched, try again in " + FETCH_RETRY / 1000 + " seconds", FETCH_RETRY);
+		}
+		
+		cache.access(video);
+		return videoFile;
+	}
+	
+	@Override
+	public Ticket requestVideoTicket(String video, ClientData client, long offset) throws LoginException {
+		log.info("User '" + client.username + "' requested a ticket for video '" + video + "' from " + offset);
+		
+		Video videoFile = available(video);
+		if (videoFile == null || !videoFile.finished)
+			log.error("User '" + client.username + "' requested unavailable video '" + video + "'", "Video '" + video + "' is not available on the subserver");
+		
+		// Released by the data plane once the ticket is served or expires
+		cache.acquire(video);
+		return dataPlane.issue(video, offset, videoFile.size() - offset, false);
+	}
+	
+	private static Chunk readChunk(SharedReader reader, String video, long offset) throws IOException {
+		int sequence = (int) (offset / Utils.PACKAGE_SIZE);
+		byte[] data = reader.read(sequence);
+		
+		int skip = (int) (offset - (long) sequence * Utils.PACKAGE_SIZE);
+		if (skip > 0) data = Arrays.copyOfRange(data, Math.min(skip, data.length), data.length);
+		
+		return new Chunk(video, offset, sequence, data, data.length);
+	}
+	
+	// A single pulled chunk, queued with the streams so pulls get the same fair share and egress cap
+	private static class Pull extends EgressScheduler.Transfer {
+		private final PendingChunk pending;
+		
+		Pull(String video, String client, PendingChunk pending) {
+			super(video, client);
+			this.pending = pending;
+		}
+		
+		@Override
+		int send() throws IOException {
+			return pending.send();
+		}
+		
+		@Override
+		long remaining() {
+			return pending.remaining();
+		}
+		
+		@Override
+		void done(boolean completed) {
+			pending.done(completed);
+		}
+	}
+	
+	private class Stream extends EgressScheduler.Transfer {
+		private final ClientData target;
+		private final Video videoFile;
+		private final SharedReader reader;
+		private final ChunkSizer sizer;
+		
+		private final long total;
+		private volatile long uploaded;
+		
+		Stream(String video, ClientData target, long offset) {
+			super(video, target.username);
+			this.target = target;
+			
+			videoFile = videos.get(video);
+			reader = readers.compute(video, (name, shared) -> (shared == null ? new SharedReader(videoFile) : shared).subscribe());
+			sizer = sizers.computeIfAbsent("client " + target.username, (name) -> new ChunkSizer());
+			cache.acquire(video);
+			
+			total = videoFile.size();
+			uploaded = offset;
+		}
+		
+		@Override
+		int send() throws IOException {
+			// Cached blocks are always whole packages, a smaller chunk is cut out of the block holding the current offset
+			int block = (int) (uploaded / Utils.PACKAGE_SIZE);
+			byte[] data = uploaded < total ? reader.read(block) : new byte[0];
+			
+			int skip = (int) (uploaded - (long) block * Utils.PACKAGE_SIZE);
+			if (data.length <= skip) {
+				target.client.finalizeVideo(videoFile.name);
+				return -1;
 			}
 			
-			requestedVideos.remove(video + client.username);
-		});
+			int size = Math.min(sizer.next(), data.length - skip);
+			if (skip > 0 || size < data.length) data = Arrays.copyOfRange(data, skip, skip + size);
+			
+			Chunk chunk = new Chunk(videoFile.name, uploaded, block, data, size);
+			
+			uploaded += size;
+			log.info("Sending data for video '" + videoFile.name + "' to user '" + client + "' [" + uploaded + "/" + total + ", " + videoFile.percent(uploaded) + "%, " + sizer + "]");
+			
+			long started = System.currentTimeMillis();
+			target.client.uploadSubserverToClient(chunk);
+			sizer.record(size, System.currentTimeMillis() - started);
+			
+			return size;
+		}
+		
+		@Override
+		long remaining() {
+			return total - uploaded;
+		}
+		
+		@Override
+		void done(boolean completed) {
+			if (!completed) log.info("Stopped sending video '" + video + "' to client '" + client + "'");
+			
+			log.info("Client '" + client + "' left shared reader " + reader);
+			readers.computeIfPresent(video, (name, shared) -> shared.unsubscribe());
+			cache.release(video);
+			
+			requestedVideos.remove(video + client, this);
+		}
 	}
 	
 	@Override
-	public boolean reserveVideo(String video, String owner) throws LoginException {
+	public long reserveVideo(String video, String owner, long length) throws LoginException {
 		log.info("Checking if video name not already in use '" + video + "' for user '" + owner + "'");
 		
+		Window window = uploads.remove(video);
+		if (window != null) window.close();
+		
+		long offset = -1;
 		try {
-			return server.reserveVideo(video, owner);
+			offset = server.reserveVideo(video, owner, length);
 		} catch (IOException e) {
 			log.error("No connection to the central server while getting video reservation for video '" + video + "' for user '" + owner + "'", "Couldn't get video reservation from central server!");
 		}
 		
-		return false;
+		if (offset >= 0) prepareUploadedCopy(video, owner, length, offset);
+		
+		return offset;
+	}
+	
+	private void prepareUploadedCopy(String video, String owner, long length, long offset) {
+		synchronized (video.intern()) {
+			Video videoFile = videos.get(video);
+			if (videoFile != null && offset > 0) return;
+			
+			try {
+				if (videoFile != null) videoFile.close();
+				Files.deleteIfExists(Path.of(Video.destination + video));
+				
+				videoFile = new Video(video, owner);
+				videoFile.allocate(length);
+				videos.put(video, videoFile);
+				
+				log.info("Keeping a local copy of video '" + video + "' while it is uploaded");
+			} catch (IOException e) {
+				log.info("Couldn't prepare a local copy of video '" + video + "'");
+			}
+		}
+	}
+	
+	private void keepUploadedCopy(String video, Manifest expected) throws InterruptedException {
+		Video videoFile = videos.get(video);
+		if (videoFile == null || videoFile.finished) return;
+		
+		WriteBehind.shared.flush();
+		
+		if (videoFile.received.contiguous() >= videoFile.size()) {
+			log.info("Verifying local copy of uploaded video '" + video + "'");
+			getVerifyThread(videoFile, expected).start();
+		} else {
+			log.info("Local copy of uploaded video '" + video + "' is missing data, it will be resumed from the central server");
+		}
 	}
 	
 	@Override
-	public void finalizeVideo(String video, String owner) throws LoginException {
-		log.info("Finalizing video on central server '" + video + "'");
+	public Manifest getManifest(String video) throws LoginException {
 		try {
-			server.finalizeVideoOnCentral(video, owner);
+			return server.getManifest(video);
 		} catch (IOException e) {
+			log.error("No connection to the central server while getting the manifest of video '" + video + "'", "Couldn't get the manifest from central server!");
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public Ticket uploadTicket(String video, String owner, long offset, long length) throws LoginException {
+		log.info("Requesting an upload ticket for video '" + video + "' for user '" + owner + "'");
+		
+		try {
+			return server.uploadTicket(video, owner, offset, length);
+		} catch (IOException e) {
+			log.error("No connection to the central server while getting an upload ticket for video '" + video + "' for user '" + owner + "'", "Couldn't get an upload ticket from central server!");
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public void finalizeVideo(String video, String owner, Manifest manifest) throws LoginException {
+		log.info("Finalizing video on central server '" + video + "'");
+		
+		Window window = uploads.remove(video);
+		try {
+			if (window != null) window.drain();
+			
+			server.finalizeVideoOnCentral(video, owner, manifest);
+			
+			keepUploadedCopy(video, manifest);
+		} catch (IOException | InterruptedException e) {
 			log.error("No connection to the central server while finalizing video '" + video + "' for user '" + owner + "'", "Couldn't get video finalization to central server!");
+		} finally {
+			if (window != null) window.close();
 		}
 	}
 	
-	public static void main(String[] args) throws RemoteException {
+	public static void main(String[] args) throws IOException {
 		new Subserver(args.length > 0 ? args[0] : "localhost", args.length > 1 ? Integer.parseInt(args[1]) : 8000, args.length > 2 && args[2].equals("nogui"));
 	}
 }
@@ -0,0 +1,30 @@
+package server;
+
+// Token bucket holding senders back to a rate in bytes per second, a rate of zero or less is unlimited
+class Throttle {
+	private final long rate;
+	
+	private double available;
+	private long last = System.nanoTime();
+	
+	Throttle(long rate) {
+		this.rate = rate;
+		available = rate;
+	}
+	
+	void acquire(long bytes) throws InterruptedException {
+		long wait = charge(bytes);
+		if (wait > 0) Thread.sleep(wait);
+	}
+	
+	// Takes the bytes without waiting and returns how many milliseconds the sender should hold off
+	synchronized long charge(long bytes) {
+		if (rate <= 0) return 0;
+		
+		long now = System.nanoTime();
+		available = Math.min(rate, available + (now - last) / 1e9 * rate) - bytes;
+		last = now;
+		
+		return available < 0 ? (long) (-available * 1000 / rate) : 0;
+	}
+}
@@ -0,0 +1,135 @@
+package server;
+
+import shared.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// Bounded pool sending transfers one chunk at a time, the most urgent transfer always gets the next chunk
+class TransferScheduler {
+	abstract static class Transfer {
+		final String video;
+		final int subserver;
+		final boolean urgent;
+		
+		private long order;
+		private long notBefore = 0;
+		
+		Transfer(String video, int subserver, boolean urgent) {
+			this.video = video;
+			this.subserver = subserver;
+			this.urgent = urgent;
+		}
+		
+		// Sends the next chunk and returns its size, -1 once the whole transfer is done
+		abstract int send() throws IOException;
+		
+		abstract void done(boolean completed);
+	}
+	
+	private final ArrayList<Transfer> pending = new ArrayList<>();
+	private final Predicate<String> playing;
+	private long order = 0;
+	
+	private final Throttle egress = new Throttle(Utils.EGRESS);
+	private final ConcurrentHashMap<Integer, Throttle> subserverEgress = new ConcurrentHashMap<>();
+	
+	TransferScheduler(int workers, Predicate<String> playing) {
+		this.playing = playing;
+		
+		for (int i = 0; i < workers; i++) getWorkerThread().start();
+	}
+	
+	synchronized void submit(Transfer transfer) {
+		transfer.order = order++;
+		pending.add(transfer);
+		
+		notifyAll();
+	}
+	
+	private synchronized void requeue(Transfer transfer) {
+		pending.add(transfer);
+		
+		notifyAll();
+	}
+	
+	// Transfers to a subserver over its own cap sit out until it refills, the workers meanwhile serve everyone else
+	private synchronized Transfer next() throws InterruptedException {
+		while (true) {
+			long now = System.currentTimeMillis();
+			long wake = Long.MAX_VALUE;
+			
+			Transfer next = null;
+			for (Transfer transfer : pending) {
+				if (transfer.notBefore > now) {
+					wake = Math.min(wake, transfer.notBefore);
+					continue;
+				}
+				
+				if (next == null || priority(transfer) > priority(next) || priority(transfer) == priority(next) && transfer.order < next.order) next = transfer;
+			}
+			
+			if (next != null) {
+				pending.remove(next);
+				return next;
+			}
+			
+			if (wake == Long.MAX_VALUE) wait();
+			else wait(wake - now);
+		}
+	}
+	
+	private int priority(Transfer transfer) {
+		if (playing.test(transfer.video)) return 2;
+		
+		return transfer.urgent ? 1 : 0;
+	}
+	
+	private Thread getWorkerThread() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				Transfer transfer;
+				
+				try {
+					transfer = next();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				try {
+					int size = transfer.send();
+					if (size < 0) {
+						transfer.done(true);
+						continue;
+					}
+					
+					egress.acquire(size);
+					// Pulls made directly by clients only count towards the global cap
+					if (transfer.subserver >= 0)
+						transfer.notBefore = System.currentTimeMillis() + subserverEgress.computeIfAbsent(transfer.subserver, (id) -> new Throttle(Utils.EGRESS_PER_SUBSERVER)).charge(size);
+					
+					requeue(transfer);
+				} catch (IOException e) {
+					transfer.done(false);
+				} catch (RuntimeException e) {
+					// RMI hands remote runtime exceptions back as they are, they end the transfer and not the worker
+					e.printStackTrace();
+					transfer.done(false);
+				} catch (InterruptedException e) {
+					transfer.done(false);
+					return;
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "[" + pending.size() + " waiting]";
+	}
+}
@@ -0,0 +1,67 @@
+package shared;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+	public static final BufferPool shared = new BufferPool(Utils.PACKAGE_SIZE, Utils.POOL_BUFFERS);
+	
+	private final int bufferSize;
+	private final int capacity;
+	private final ArrayBlockingQueue<byte[]> free;
+	private final Set<byte[]> pooled = ConcurrentHashMap.newKeySet();
+	
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final AtomicInteger leased = new AtomicInteger();
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		
+		free = new ArrayBlockingQueue<>(capacity);
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	public byte[] lease() {
+		leased.incrementAndGet();
+		
+		byte[] buffer = free.poll();
+		if (buffer != null) {
+			hits.increment();
+			return buffer;
+		}
+		
+		if (allocated.incrementAndGet() <= capacity) {
+			buffer = new byte[bufferSize];
+			pooled.add(buffer);
+			return buffer;
+		}
+		
+		allocated.decrementAndGet();
+		
+		// Everything is leased out, hand out a buffer the pool won't keep instead of stalling the transfer
+		overflows.increment();
+		return new byte[bufferSize];
+	}
+	
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) return;
+		
+		leased.decrementAndGet();
+		if (pooled.contains(buffer)) free.offer(buffer);
+	}
+	
+	@Override
+	public String toString() {
+		return "[leased " + leased.get() + ", pooled " + allocated.get() + "/" + capacity + ", hits " + hits.sum() + ", overflows " + overflows.sum() + "]";
+	}
+}
@@ -0,0 +1,77 @@
+package shared;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+// Written by hand so only the used part of the buffer goes over the wire
+public class Chunk implements Externalizable {
+	private String video;
+	private long offset;
+	private int sequence;
+	
+	private byte[] data;
+	private int size;
+	
+	public Chunk() {
+	}
+	
+	public Chunk(String video, long offset, int sequence, byte[] data, int size) {
+		this.video = video;
+		this.offset = offset;
+		this.sequence = sequence;
+		this.data = data;
+		this.size = size;
+	}
+	
+	public String getVideo() {
+		return video;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public int getSequence() {
+		return sequence;
+	}
+	
+	public byte[] getData() {
+		return data;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeUTF(video);
+		out.writeLong(offset);
+		out.writeInt(sequence);
+		out.writeInt(size);
+		out.write(data, 0, size);
+	}
+	
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		video = in.readUTF();
+		offset = in.readLong();
+		sequence = in.readInt();
+		size = in.readInt();
+		
+		data = size <= BufferPool.shared.getBufferSize() ? BufferPool.shared.lease() : new byte[size];
+		in.readFully(data, 0, size);
+	}
+	
+	public void release() {
+		BufferPool.shared.release(data);
+		data = null;
+	}
+	
+	@Override
+	public String toString() {
+		return "'" + video + "' #" + sequence + " [" + offset + ", " + size + "]";
+	}
+}
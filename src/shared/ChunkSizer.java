@@ -0,0 +1,39 @@
+package shared;
+
+// Chunk size for one connection, sized from measured throughput so a call lasts long enough to hide the round trip
+// but stays far from the RMI timeout, always between MIN_CHUNK and PACKAGE_SIZE
+public class ChunkSizer {
+	private static final long LIMIT = Long.parseLong(Utils.TIMEOUT) / 4;
+	private static final int MIN = Math.max(1, Math.min(Utils.MIN_CHUNK, Utils.PACKAGE_SIZE));
+	
+	private int size = Math.max(MIN, Utils.PACKAGE_SIZE / 8);
+	
+	// Bytes per millisecond and the fastest recent call in milliseconds
+	private double throughput = 0;
+	private double rtt = -1;
+	
+	public synchronized int next() {
+		return size;
+	}
+	
+	public synchronized void record(int bytes, long millis) {
+		millis = Math.max(1, millis);
+		
+		rtt = rtt < 0 || millis < rtt ? millis : rtt + (millis - rtt) * 0.05;
+		throughput = throughput == 0 ? (double) bytes / millis : 0.8 * throughput + 0.2 * bytes / millis;
+		
+		if (millis > LIMIT) {
+			size = Math.max(MIN, size / 2);
+			return;
+		}
+		
+		double target = Math.min(LIMIT, Math.max(Utils.CHUNK_MILLIS, 4 * rtt));
+		// Rounded before clamping, a small MIN_CHUNK would otherwise round down to nothing
+		size = Math.max(MIN, (int) Math.min(Utils.PACKAGE_SIZE, throughput * target) / 4096 * 4096);
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "chunk " + size / 1024 + "KB, " + (long) (throughput * 1000 / 1024) + "KB/s, fastest call " + (long) rtt + "ms";
+	}
+}
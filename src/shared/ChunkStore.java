@@ -0,0 +1,94 @@
+package shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds blocks by hash in the finished videos on this node, so a block already on disk is copied instead of transferred
+public class ChunkStore {
+	private static class Location {
+		final String video;
+		final long offset;
+		
+		Location(String video, long offset) {
+			this.video = video;
+			this.offset = offset;
+		}
+	}
+	
+	private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Location> blocks = new ConcurrentHashMap<>();
+	
+	public Manifest manifest(String video) {
+		return manifests.get(video);
+	}
+	
+	public synchronized void add(Manifest manifest) {
+		manifests.put(manifest.video, manifest);
+		
+		if (manifest.blockSize != Utils.PACKAGE_SIZE) return;
+		for (int block = 0; block < manifest.hashes.length; block++) blocks.putIfAbsent(manifest.hashes[block], new Location(manifest.video, manifest.start(block)));
+	}
+	
+	public synchronized void remove(String video) {
+		if (manifests.remove(video) == null) return;
+		
+		blocks.values().removeIf((location) -> location.video.equals(video));
+		for (Manifest manifest : manifests.values()) add(manifest);
+	}
+	
+	public synchronized void clear() {
+		manifests.clear();
+		blocks.clear();
+	}
+	
+	// A finished video on this node with exactly the same bytes, if there is one
+	public String identical(Manifest manifest) {
+		for (Manifest local : manifests.values()) if (!local.video.equals(manifest.video) && local.sameContent(manifest)) return local.video;
+		
+		return null;
+	}
+	
+	// Copies every block of the manifest found on this node into the target and returns the blocks the target now has
+	public BitSet fill(Video target, Manifest manifest) throws IOException {
+		BitSet present = new BitSet(manifest.hashes.length);
+		if (manifest.blockSize != Utils.PACKAGE_SIZE) return present;
+		
+		for (int block = 0; block < manifest.hashes.length; block++) {
+			long start = manifest.start(block);
+			long end = manifest.end(block);
+			
+			if (target.received.covers(start, end)) {
+				present.set(block);
+				continue;
+			}
+			
+			Location location = blocks.get(manifest.hashes[block]);
+			if (location == null || location.video.equals(target.name)) continue;
+			
+			byte[] b = BufferPool.shared.lease();
+			try (FileChannel file = FileChannel.open(Path.of(Video.destination + location.video), StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.wrap(b, 0, (int) (end - start));
+				while (buffer.hasRemaining()) if (file.read(buffer, location.offset + buffer.position()) == -1) break;
+				
+				if (buffer.hasRemaining()) continue;
+				
+				target.write(new Chunk(target.name, start, block, b, buffer.position()));
+				present.set(block);
+			} finally {
+				BufferPool.shared.release(b);
+			}
+		}
+		
+		return present;
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + manifests.size() + " videos, " + blocks.size() + " distinct blocks]";
+	}
+}
@@ -0,0 +1,47 @@
+package shared;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+
+// This machine's estimate of the central server's clock, room timelines are expressed in it
+public class Clock {
+	private static final int SAMPLES = 8;
+	
+	public static final Clock central = new Clock();
+	
+	public interface Source {
+		long time() throws RemoteException;
+	}
+	
+	// Each sample is {offset, round trip}
+	private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+	
+	private volatile long offset;
+	private volatile long rtt;
+	
+	public long now() {
+		return System.currentTimeMillis() + offset;
+	}
+	
+	// NTP style, the reply is taken as stamped halfway through the call and the fastest recent call is trusted the most
+	public void sync(Source source) throws RemoteException {
+		long sent = System.currentTimeMillis();
+		long remote = source.time();
+		long received = System.currentTimeMillis();
+		
+		synchronized (samples) {
+			samples.addLast(new long[]{remote - (sent + received) / 2, received - sent});
+			if (samples.size() > SAMPLES) samples.removeFirst();
+			
+			long[] best = samples.stream().min(Comparator.comparingLong((sample) -> sample[1])).orElseThrow();
+			offset = best[0];
+			rtt = best[1];
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "offset " + offset + "ms, round trip " + rtt + "ms";
+	}
+}
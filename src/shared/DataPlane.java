@@ -0,0 +1,183 @@
+package shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+// Bulk video transport next to RMI, RMI only hands out tickets and the bytes move between file and socket channels
+public class DataPlane {
+	private final ServerSocketChannel channel;
+	private final String host;
+	
+	private final ConcurrentHashMap<Long, Ticket> tickets = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, Long> issued = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	
+	private final BiConsumer<Ticket, Long> progress;
+	private final Consumer<Ticket> done;
+	
+	public DataPlane(String host, BiConsumer<Ticket, Long> progress) throws IOException {
+		this(host, progress, (ticket) -> {
+		});
+	}
+	
+	// Done is called once per ticket, when its transfer ends either way or when it expires unused
+	public DataPlane(String host, BiConsumer<Ticket, Long> progress, Consumer<Ticket> done) throws IOException {
+		this.host = host;
+		this.progress = progress;
+		this.done = done;
+		
+		channel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+		getAcceptThread().start();
+		getExpiryThread().start();
+	}
+	
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+	
+	public Ticket issue(String video, long offset, long length, boolean upload) {
+		Ticket ticket;
+		
+		do ticket = new Ticket(host, getPort(), random.nextLong(), video, offset, length, upload);
+		while (tickets.putIfAbsent(ticket.token, ticket) != null);
+		
+		issued.put(ticket.token, System.currentTimeMillis());
+		return ticket;
+	}
+	
+	private Thread getExpiryThread() {
+		Thread thread = new Thread(() -> {
+			while (channel.isOpen()) {
+				long expired = System.currentTimeMillis() - Integer.parseInt(Utils.TIMEOUT);
+				
+				for (Map.Entry<Long, Long> entry : issued.entrySet()) {
+					if (entry.getValue() > expired) continue;
+					
+					issued.remove(entry.getKey());
+					Ticket ticket = tickets.remove(entry.getKey());
+					if (ticket != null) done.accept(ticket);
+				}
+				
+				Utils.sleep(1000);
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	private Thread getAcceptThread() {
+		Thread thread = new Thread(() -> {
+			while (channel.isOpen()) {
+				try {
+					SocketChannel socket = channel.accept();
+					getServeThread(socket).start();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	private Thread getServeThread(SocketChannel socket) {
+		return new Thread(() -> {
+			try (socket) {
+				ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+				while (header.hasRemaining()) if (socket.read(header) == -1) return;
+				
+				Ticket ticket = tickets.remove(header.flip().getLong());
+				if (ticket == null) return;
+				
+				issued.remove(ticket.token);
+				Path path = Path.of(Video.destination + ticket.video);
+				
+				try {
+					if (ticket.upload) {
+						try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+							receive(socket, file, ticket.offset, ticket.length, (transferred) -> progress.accept(ticket, transferred));
+						}
+						
+						socket.write(ByteBuffer.wrap(new byte[]{1}));
+					} else {
+						try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+							send(file, socket, ticket.offset, ticket.length, (transferred) -> progress.accept(ticket, transferred));
+						}
+					}
+				} finally {
+					done.accept(ticket);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	public static void fetch(Ticket ticket, Path target, LongConsumer progress) throws IOException {
+		try (SocketChannel socket = connect(ticket);
+		     FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			receive(socket, file, ticket.offset, ticket.length, progress);
+		}
+	}
+	
+	public static void push(Ticket ticket, Path source, LongConsumer progress) throws IOException {
+		try (SocketChannel socket = connect(ticket);
+		     FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+			send(file, socket, ticket.offset, ticket.length, progress);
+			
+			ByteBuffer ack = ByteBuffer.allocate(1);
+			while (ack.hasRemaining()) if (socket.read(ack) == -1) throw new EOFException("No acknowledgement for " + ticket);
+		}
+	}
+	
+	private static SocketChannel connect(Ticket ticket) throws IOException {
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress(ticket.host, ticket.port));
+		
+		ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(ticket.token).flip();
+		while (header.hasRemaining()) socket.write(header);
+		
+		return socket;
+	}
+	
+	private static void send(FileChannel file, SocketChannel socket, long offset, long length, LongConsumer progress) throws IOException {
+		long sent = 0;
+		
+		while (sent < length) {
+			long count = file.transferTo(offset + sent, Math.min(length - sent, Utils.PACKAGE_SIZE), socket);
+			if (count == 0 && offset + sent >= file.size()) throw new EOFException("File ended at " + (offset + sent) + " out of " + (offset + length));
+			
+			sent += count;
+			progress.accept(sent);
+		}
+	}
+	
+	private static void receive(SocketChannel socket, FileChannel file, long offset, long length, LongConsumer progress) throws IOException {
+		// transferFrom does nothing past the end of the file, so grow it to the starting offset first
+		if (file.size() < offset) file.write(ByteBuffer.allocate(1), offset - 1);
+		
+		long received = 0;
+		
+		while (received < length) {
+			long count = file.transferFrom(socket, offset + received, Math.min(length - received, Utils.PACKAGE_SIZE));
+			if (count == 0) throw new EOFException("Connection ended at " + (offset + received) + " out of " + (offset + length));
+			
+			received += count;
+			progress.accept(received);
+		}
+	}
+}
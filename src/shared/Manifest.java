@@ -0,0 +1,106 @@
+package shared;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// SHA-256 of every block of a video, identical blocks hash the same whatever video they are in
+public class Manifest implements Serializable {
+	private static final ForkJoinPool hashing = new ForkJoinPool(Utils.HASH_THREADS);
+	
+	public final String video;
+	public final long length;
+	public final int blockSize;
+	public final String[] hashes;
+	
+	private Manifest(String video, long length, int blockSize, String[] hashes) {
+		this.video = video;
+		this.length = length;
+		this.blockSize = blockSize;
+		this.hashes = hashes;
+	}
+	
+	public static Manifest of(Video video) throws IOException {
+		return of(video.name, Path.of(Video.destination + video.name), video.size(), true);
+	}
+	
+	// Blocks are hashed on the hashing pool in parallel, or one after another on the calling thread
+	public static Manifest of(String video, Path path, long length, boolean parallel) throws IOException {
+		String[] hashes = new String[(int) ((length + Utils.PACKAGE_SIZE - 1) / Utils.PACKAGE_SIZE)];
+		
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			IntStream blocks = IntStream.range(0, hashes.length);
+			
+			if (parallel) hashing.submit(() -> blocks.parallel().forEach((block) -> hashes[block] = hash(file, block, length))).get();
+			else blocks.forEach((block) -> hashes[block] = hash(file, block, length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing video '" + video + "'");
+		}
+		
+		return new Manifest(video, length, Utils.PACKAGE_SIZE, hashes);
+	}
+	
+	private static String hash(FileChannel file, int block, long length) {
+		try {
+			long position = (long) block * Utils.PACKAGE_SIZE;
+			
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Utils.PACKAGE_SIZE, length - position));
+			while (buffer.hasRemaining()) if (file.read(buffer, position + buffer.position()) == -1) break;
+			
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(buffer.array(), 0, buffer.position());
+			
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// Blocks of the expected manifest whose bytes differ here, every block if the two can't be compared
+	public BitSet corrupted(Manifest expected) {
+		BitSet corrupted = new BitSet(expected.hashes.length);
+		
+		for (int block = 0; block < expected.hashes.length; block++)
+			if (blockSize != expected.blockSize || block >= hashes.length || !hashes[block].equals(expected.hashes[block])) corrupted.set(block);
+		
+		return corrupted;
+	}
+	
+	public long start(int block) {
+		return (long) block * blockSize;
+	}
+	
+	public long end(int block) {
+		return Math.min(length, start(block) + blockSize);
+	}
+	
+	public boolean sameContent(Manifest other) {
+		return length == other.length && blockSize == other.blockSize && Arrays.equals(hashes, other.hashes);
+	}
+	
+	@Override
+	public String toString() {
+		return "'" + video + "' [" + length + " bytes in " + hashes.length + " blocks]";
+	}
+}
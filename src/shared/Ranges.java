@@ -0,0 +1,55 @@
+package shared;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Ranges {
+	private final TreeMap<Long, Long> ranges = new TreeMap<>();
+	
+	public synchronized void add(long start, long end) {
+		if (start >= end) return;
+		
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		
+		Map.Entry<Long, Long> next;
+		while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+		}
+		
+		ranges.put(start, end);
+	}
+	
+	public synchronized void remove(long start, long end) {
+		Map.Entry<Long, Long> before = ranges.lowerEntry(start);
+		if (before != null && before.getValue() > start) {
+			ranges.put(before.getKey(), start);
+			if (before.getValue() > end) ranges.put(end, before.getValue());
+		}
+		
+		Map.Entry<Long, Long> next;
+		while ((next = ranges.ceilingEntry(start)) != null && next.getKey() < end) {
+			ranges.remove(next.getKey());
+			if (next.getValue() > end) ranges.put(end, next.getValue());
+		}
+	}
+	
+	public synchronized boolean covers(long start, long end) {
+		Map.Entry<Long, Long> range = ranges.floorEntry(start);
+		return start >= end || range != null && range.getValue() >= end;
+	}
+	
+	public synchronized long contiguous() {
+		Long end = ranges.get(0L);
+		return end == null ? 0 : end;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return ranges.toString();
+	}
+}
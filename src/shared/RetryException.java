@@ -0,0 +1,12 @@
+package shared;
+
+import javax.security.auth.login.LoginException;
+
+public class RetryException extends LoginException {
+	public final long retryAfter;
+	
+	public RetryException(String msg, long retryAfter) {
+		super(msg);
+		this.retryAfter = retryAfter;
+	}
+}
@@ -9,8 +9,7 @@ public class Room implements Serializable {
 	public final ArrayList<String> viewers;
 	
 	private int ID;
-	private long time = 0;
-	private boolean paused = false;
+	private RoomState state = new RoomState(0, 0, 0, 0, 1, true);
 	
 	private long lastUpdate;
 	
@@ -20,23 +19,36 @@ public class Room implements Serializable {
 		this.viewers = viewers;
 	}
 	
-	public void sync(long time, boolean paused) {
-		this.time = time;
-		this.paused = paused;
+	// Owners report where they were at an instant, the timeline only moves when that strays from where it already puts them
+	public synchronized boolean sync(long time, long at, float rate, boolean paused, long now) {
+		lastUpdate = now;
+		at = Math.min(at, now);
 		
-		this.lastUpdate = System.currentTimeMillis();
+		if (state.paused == paused && state.rate == rate && Math.abs(state.position(at) - time) <= Utils.ROOM_DRIFT) return false;
+		
+		state = new RoomState(ID, state.version + 1, time, at, rate, paused);
+		return true;
 	}
 	
-	public boolean getPaused() {
-		return paused;
+	// Replicas take states in version order, older ones arriving late are ignored
+	public synchronized boolean apply(RoomState state) {
+		if (state.version <= this.state.version) return false;
+		
+		this.state = state;
+		return true;
+	}
+	
+	public synchronized RoomState state() {
+		return state;
 	}
 	
-	public long getTime() {
-		return time;
+	public boolean getPaused() {
+		return state().paused;
 	}
 	
-	public void setID(int ID) {
+	public synchronized void setID(int ID) {
 		this.ID = ID;
+		state = new RoomState(ID, state.version, state.time, state.reference, state.rate, state.paused);
 	}
 	
 	public int getID() {
@@ -47,6 +59,10 @@ public class Room implements Serializable {
 		return lastUpdate;
 	}
 	
+	public long getVersion() {
+		return state().version;
+	}
+	
 	@Override
 	public String toString() {
 		return ID + " | " + owner + " | " + video;
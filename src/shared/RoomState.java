@@ -0,0 +1,32 @@
+package shared;
+
+import java.io.Serializable;
+
+// A room's timeline, the position at a reference instant on the central server's clock and how fast it moves from there
+public class RoomState implements Serializable {
+	public final int room;
+	public final long version;
+	
+	public final long time;
+	public final long reference;
+	public final float rate;
+	public final boolean paused;
+	
+	public RoomState(int room, long version, long time, long reference, float rate, boolean paused) {
+		this.room = room;
+		this.version = version;
+		this.time = time;
+		this.reference = reference;
+		this.rate = rate;
+		this.paused = paused;
+	}
+	
+	public long position(long now) {
+		return paused ? time : time + (long) ((now - reference) * rate);
+	}
+	
+	@Override
+	public String toString() {
+		return "room " + room + " v" + version + " [" + time + " @ " + reference + ", " + rate + "x, " + paused + "]";
+	}
+}
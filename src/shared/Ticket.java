@@ -0,0 +1,29 @@
+package shared;
+
+import java.io.Serializable;
+
+public class Ticket implements Serializable {
+	public final String host;
+	public final int port;
+	public final long token;
+	
+	public final String video;
+	public final long offset;
+	public final long length;
+	public final boolean upload;
+	
+	public Ticket(String host, int port, long token, String video, long offset, long length, boolean upload) {
+		this.host = host;
+		this.port = port;
+		this.token = token;
+		this.video = video;
+		this.offset = offset;
+		this.length = length;
+		this.upload = upload;
+	}
+	
+	@Override
+	public String toString() {
+		return (upload ? "PUT" : "GET") + " '" + video + "' [" + offset + ", " + length + "] @ " + host + ":" + port;
+	}
+}
@@ -5,8 +5,39 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class Utils {
-	public static final int PACKAGE_SIZE = 1024 * 1024 * 2; // 2MB
+	public static final int PACKAGE_SIZE = Integer.getInteger("kdp.maxChunk", 1024 * 1024 * 2); // 2MB
+	public static final int MIN_CHUNK = Integer.getInteger("kdp.minChunk", 64 * 1024);
+	public static final long CHUNK_MILLIS = Long.getLong("kdp.chunkMillis", 500);
 	public static final String TIMEOUT = "10000";
+	public static final boolean MULTI_SOURCE = Boolean.getBoolean("kdp.multiSource");
+	public static final boolean DATA_PLANE = Boolean.getBoolean("kdp.dataPlane");
+	public static final int WINDOW = Integer.getInteger("kdp.window", 4);
+	public static final int UPLOAD_STREAMS = Integer.getInteger("kdp.uploadStreams", 4);
+	public static final long FSYNC_BYTES = Long.getLong("kdp.fsyncBytes", -1);
+	public static final int POOL_BUFFERS = Integer.getInteger("kdp.poolBuffers", 32);
+	public static final int WRITE_QUEUE = Integer.getInteger("kdp.writeQueue", 16);
+	public static final int SEEDS = Integer.getInteger("kdp.seeds", 1);
+	public static final int FANOUT = Integer.getInteger("kdp.fanout", 2);
+	public static final int TRANSFERS = Integer.getInteger("kdp.transfers", 4);
+	public static final long EGRESS = Long.getLong("kdp.egress", -1);
+	public static final long EGRESS_PER_SUBSERVER = Long.getLong("kdp.egressPerSubserver", -1);
+	public static final int CLIENT_TRANSFERS = Integer.getInteger("kdp.clientTransfers", 8);
+	public static final int CLIENT_STREAMS = Integer.getInteger("kdp.clientStreams", 64);
+	public static final long CLIENT_EGRESS = Long.getLong("kdp.clientEgress", -1);
+	public static final long CACHE_BYTES = Long.getLong("kdp.cacheBytes", -1);
+	public static final String PINNED = System.getProperty("kdp.pinned", "");
+	public static final int READ_WINDOW = Integer.getInteger("kdp.readWindow", 8);
+	public static final long READ_CACHE_BYTES = Long.getLong("kdp.readCacheBytes", 64L * 1024 * 1024);
+	public static final int ROOM_POLL = Integer.getInteger("kdp.roomPoll", 5000);
+	public static final int ROOM_HEARTBEAT = Integer.getInteger("kdp.roomHeartbeat", 3000);
+	public static final int ROOM_TIMEOUT = Integer.getInteger("kdp.roomTimeout", 10000);
+	public static final int ROOM_DRIFT = Integer.getInteger("kdp.roomDrift", 500);
+	public static final int ROOM_SEEK = Integer.getInteger("kdp.roomSeek", 2000);
+	public static final int ROOM_RATE_BAND = Integer.getInteger("kdp.roomRateBand", 10);
+	public static final int ROOM_PUSHERS = Integer.getInteger("kdp.roomPushers", 8);
+	public static final int HASH_THREADS = Integer.getInteger("kdp.hashThreads", Runtime.getRuntime().availableProcessors());
+	public static final int SCRUB_MILLIS = Integer.getInteger("kdp.scrubMillis", 10 * 60 * 1000);
+	public static final long CLIENT_CACHE_BYTES = Long.getLong("kdp.clientCacheBytes", -1);
 	
 	public static void cleanup(String location) {
 		Path path = Path.of(location);
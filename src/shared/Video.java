@@ -1,8 +1,11 @@
 package shared;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class Video {
 	public static String destination;
@@ -10,7 +13,13 @@ public class Video {
 	public final String name;
 	public final String owner;
 	public boolean finished = false;
+	public final Ranges received = new Ranges();
 	private long lastModified;
+	private long revision = 0;
+	
+	private FileChannel channel;
+	private long length = -1;
+	private long unsynced = 0;
 	
 	public Video(String name, String owner) {
 		this.name = name;
@@ -22,13 +31,105 @@ public class Video {
 		return !finished && System.currentTimeMillis() > lastModified + 1000 * 60;
 	}
 	
-	public void write(Data data) {
-		try (OutputStream os = new FileOutputStream(destination + name, true)) {
-			os.write(data.data, 0, data.size);
+	private FileChannel channel() throws IOException {
+		if (channel == null) channel = FileChannel.open(Path.of(destination + name), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		
+		return channel;
+	}
+	
+	public synchronized void allocate(long length) {
+		this.length = length;
+		notifyAll();
+		
+		try {
+			if (length > 0 && channel().size() < length) channel().write(ByteBuffer.allocate(1), length - 1);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public synchronized void write(Chunk chunk) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk.getData(), 0, chunk.getSize());
+			while (buffer.hasRemaining()) channel().write(buffer, chunk.getOffset() + buffer.position());
+			
+			received(chunk.getOffset(), chunk.getOffset() + chunk.getSize());
+			
+			unsynced += chunk.getSize();
+			if (Utils.FSYNC_BYTES >= 0 && unsynced >= Utils.FSYNC_BYTES) {
+				channel.force(false);
+				unsynced = 0;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		touch();
+	}
+	
+	public synchronized void received(long start, long end) {
+		received.add(start, end);
+		revision++;
+		notifyAll();
+	}
+	
+	public synchronized void invalidate(long start, long end) {
+		received.remove(start, end);
+		revision++;
+		finished = false;
+	}
+	
+	// Changes whenever data is received or invalidated, so work done outside a lock can tell if it is stale
+	public synchronized long revision() {
+		return revision;
+	}
+	
+	public synchronized boolean await(long start, long end, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		for (long left = timeout; !received.covers(start, end); left = deadline - System.currentTimeMillis()) {
+			if (left <= 0) return false;
+			wait(left);
+		}
+		
+		return true;
+	}
+	
+	public synchronized boolean awaitSize(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		for (long left = timeout; size() <= 0; left = deadline - System.currentTimeMillis()) {
+			if (left <= 0) return false;
+			wait(left);
+		}
+		
+		return true;
+	}
+	
+	public synchronized void finish() {
+		try {
+			if (channel != null && Utils.FSYNC_BYTES >= 0) channel.force(true);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		close();
+		
+		length = new File(destination + name).length();
+		finished = true;
+	}
+	
+	public synchronized void close() {
+		try {
+			if (channel != null) channel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
+		channel = null;
+	}
+	
+	public void touch() {
 		lastModified = System.currentTimeMillis();
 	}
 	
@@ -52,8 +153,17 @@ public class Video {
 		return new FileInputStream(destination + name);
 	}
 	
+	public Chunk chunk(long offset) throws IOException {
+		try (FileChannel file = FileChannel.open(Path.of(destination + name), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(Utils.PACKAGE_SIZE, size() - offset)));
+			while (buffer.hasRemaining()) if (file.read(buffer, offset + buffer.position()) == -1) break;
+			
+			return new Chunk(name, offset, (int) (offset / Utils.PACKAGE_SIZE), buffer.array(), buffer.position());
+		}
+	}
+	
 	public long size() {
-		return new File(destination + name).length();
+		return length >= 0 ? length : new File(destination + name).length();
 	}
 	
 	public int percent(long uploaded) {
@@ -0,0 +1,81 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VideoCache {
+	private final long budget;
+	private final Set<String> pinned;
+	
+	private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicInteger> inUse = new ConcurrentHashMap<>();
+	private final Set<String> demanded = ConcurrentHashMap.newKeySet();
+	
+	public VideoCache(long budget, Set<String> pinned) {
+		this.budget = budget;
+		this.pinned = pinned;
+	}
+	
+	public void access(String video) {
+		lastAccess.put(video, System.currentTimeMillis());
+	}
+	
+	public void demand(String video) {
+		demanded.add(video);
+		access(video);
+	}
+	
+	public boolean demanded(String video) {
+		return demanded.contains(video);
+	}
+	
+	public void acquire(String video) {
+		inUse.computeIfAbsent(video, (name) -> new AtomicInteger()).incrementAndGet();
+		access(video);
+	}
+	
+	public void release(String video) {
+		inUse.computeIfPresent(video, (name, count) -> count.decrementAndGet() > 0 ? count : null);
+	}
+	
+	public boolean evictable(Video video) {
+		return video.finished && !pinned.contains(video.name) && !inUse.containsKey(video.name);
+	}
+	
+	public ArrayList<Video> victims(Collection<Video> videos) {
+		long used = 0;
+		ArrayList<Video> candidates = new ArrayList<>();
+		
+		for (Video video : videos) {
+			if (!video.finished) continue;
+			
+			used += video.size();
+			if (evictable(video)) candidates.add(video);
+		}
+		
+		candidates.sort(Comparator.comparing(video -> lastAccess.getOrDefault(video.name, 0L)));
+		
+		ArrayList<Video> victims = new ArrayList<>();
+		for (Video video : candidates) {
+			if (used <= budget) break;
+			
+			victims.add(video);
+			used -= video.size();
+		}
+		
+		return victims;
+	}
+	
+	public void forget(String video) {
+		lastAccess.remove(video);
+		demanded.remove(video);
+	}
+	
+	public void fetched(String video) {
+		demanded.remove(video);
+	}
+}
@@ -0,0 +1,73 @@
+package shared;
+
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Keeps up to size calls in flight, a call returning is its acknowledgement
+public class Window {
+	public interface Call {
+		void run() throws IOException, LoginException;
+	}
+	
+	private final int size;
+	private final Semaphore slots;
+	private final ThreadPoolExecutor executor;
+	
+	private volatile Exception failure;
+	private volatile long lastUsed = System.currentTimeMillis();
+	
+	public Window(int size) {
+		this.size = size;
+		
+		slots = new Semaphore(size);
+		executor = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	public void submit(Call call) throws IOException, LoginException, InterruptedException {
+		check();
+		slots.acquire();
+		lastUsed = System.currentTimeMillis();
+		
+		try {
+			executor.execute(() -> {
+				try {
+					call.run();
+				} catch (IOException | LoginException e) {
+					if (failure == null) failure = e;
+				} finally {
+					slots.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw new IOException("Window is closed");
+		}
+	}
+	
+	// Nothing in flight and nothing submitted for as long as an unfinished video takes to expire
+	public boolean expired() {
+		return slots.availablePermits() == size && System.currentTimeMillis() > lastUsed + 1000 * 60;
+	}
+	
+	public void drain() throws IOException, LoginException, InterruptedException {
+		slots.acquire(size);
+		slots.release(size);
+		
+		check();
+	}
+	
+	public void close() {
+		executor.shutdownNow();
+	}
+	
+	private void check() throws IOException, LoginException {
+		if (failure instanceof IOException) throw (IOException) failure;
+		if (failure instanceof LoginException) throw (LoginException) failure;
+	}
+}
@@ -0,0 +1,46 @@
+package shared;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+// One writer thread per disk, receivers only wait for a free slot in the queue instead of the write itself
+public class WriteBehind {
+	public static final WriteBehind shared = new WriteBehind(Utils.WRITE_QUEUE);
+	
+	private final ArrayBlockingQueue<Runnable> queue;
+	
+	public WriteBehind(int capacity) {
+		queue = new ArrayBlockingQueue<>(capacity);
+		
+		Thread thread = new Thread(() -> {
+			while (true) {
+				try {
+					queue.take().run();
+				} catch (InterruptedException ignored) {
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void write(Video video, Chunk chunk) throws InterruptedException {
+		queue.put(() -> {
+			try {
+				video.write(chunk);
+			} finally {
+				chunk.release();
+			}
+		});
+	}
+	
+	public void flush() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		
+		queue.put(latch::countDown);
+		latch.await();
+	}
+}
@@ -1,15 +1,19 @@
 package shared.interfaces;
 
-import shared.Data;
+import shared.Chunk;
+import shared.Manifest;
 import shared.Room;
+import shared.Ticket;
 import shared.remote.ClientData;
 import shared.remote.SubserverData;
+import shared.remote.VideoSources;
 
 import javax.security.auth.login.LoginException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 public interface CentralServerInterface extends Remote {
 	long register(ClientData client) throws RemoteException, LoginException;
@@ -18,11 +22,13 @@ public interface CentralServerInterface extends Remote {
 	
 	void addSubserver(SubserverData server) throws RemoteException, NotBoundException;
 	
-	void uploadVideoDataToCentral(String video, Data data, String owner) throws RemoteException, LoginException;
+	void uploadVideoDataToCentral(Chunk chunk, String owner) throws RemoteException, LoginException;
 	
 	Room getRoomData(int room) throws RemoteException;
 	
-	void setRoomData(int room, long time, boolean paused) throws RemoteException;
+	void setRoomData(int room, long time, long at, float rate, boolean paused) throws RemoteException;
+	
+	long time() throws RemoteException;
 	
 	void createRoom(Room room) throws RemoteException;
 	
@@ -34,9 +40,23 @@ public interface CentralServerInterface extends Remote {
 	
 	ArrayList<String> getAllVideoNames() throws RemoteException;
 	
-	void requestVideoFromCentral(String video, int subserver) throws RemoteException, LoginException;
+	Manifest getManifest(String video) throws RemoteException, LoginException;
+	
+	long requestVideoFromCentral(String video, int subserver, long offset, boolean urgent, BitSet present) throws RemoteException, LoginException;
+	
+	VideoSources getVideoSources(String video, int subserver) throws RemoteException, LoginException;
+	
+	Chunk readVideoChunk(String video, long offset) throws RemoteException, LoginException;
+	
+	Ticket requestVideoTicket(String video, int subserver, long offset, long length) throws RemoteException, LoginException;
+	
+	Ticket uploadTicket(String video, String owner, long offset, long length) throws RemoteException, LoginException;
+	
+	void videoReplicated(String video, int subserver) throws RemoteException;
+	
+	void videoEvicted(String video, int subserver) throws RemoteException;
 	
-	boolean reserveVideo(String video, String owner) throws RemoteException;
+	long reserveVideo(String video, String owner, long length) throws RemoteException;
 	
-	void finalizeVideoOnCentral(String video, String owner) throws RemoteException, LoginException;
+	void finalizeVideoOnCentral(String video, String owner, Manifest manifest) throws RemoteException, LoginException;
 }
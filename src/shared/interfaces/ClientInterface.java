@@ -1,15 +1,18 @@
 package shared.interfaces;
 
-import shared.Data;
+import shared.Chunk;
+import shared.RoomState;
 
 import javax.security.auth.login.LoginException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 public interface ClientInterface extends Remote {
-	void uploadSubserverToClient(String video, Data data) throws RemoteException;
+	void uploadSubserverToClient(Chunk chunk) throws RemoteException;
 	
 	void finalizeVideo(String video) throws RemoteException;
 	
+	void roomUpdated(RoomState state) throws RemoteException;
+	
 	void assignSubserver(SubserverInterface subserver, String username, long wakeupTime, int id) throws RemoteException, LoginException;
 }
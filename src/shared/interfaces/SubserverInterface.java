@@ -1,40 +1,63 @@
 package shared.interfaces;
 
-import shared.Data;
+import shared.Chunk;
+import shared.Manifest;
 import shared.Room;
+import shared.RoomState;
+import shared.Ticket;
 import shared.remote.ClientData;
+import shared.remote.VideoSources;
 
 import javax.security.auth.login.LoginException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 public interface SubserverInterface extends Remote {
-	void uploadVideoDataToCentral(String video, Data data, String owner) throws RemoteException, LoginException;
+	void uploadVideoDataToCentral(Chunk chunk, String owner) throws RemoteException, LoginException;
 	
-	void uploadCentralToSubserver(String video, Data data) throws RemoteException;
+	void uploadCentralToSubserver(Chunk chunk) throws RemoteException;
 	
 	Room getRoomData(int room) throws RemoteException, LoginException;
 	
-	void setRoomData(int room, long time, boolean paused) throws RemoteException, LoginException;
+	void setRoomData(int room, long time, long at, float rate, boolean paused) throws RemoteException, LoginException;
+	
+	void roomUpdated(RoomState state) throws RemoteException;
 	
 	void createRoom(Room room) throws RemoteException, LoginException;
 	
 	long status() throws RemoteException;
 	
+	long time() throws RemoteException;
+	
 	ArrayList<String> getAllVideoNames() throws RemoteException;
 	
 	ArrayList<Room> getRooms(String username) throws RemoteException, LoginException;
 	
 	ArrayList<String> getUsers() throws RemoteException, LoginException;
 	
-	void requestVideoFromSubserver(String video, ClientData client) throws RemoteException, LoginException;
+	long requestVideoFromSubserver(String video, ClientData client, long offset) throws RemoteException, LoginException;
+	
+	void seekVideo(String video, ClientData client, long offset) throws RemoteException, LoginException;
+	
+	VideoSources getVideoSources(String video) throws RemoteException, LoginException;
+	
+	Manifest getManifest(String video) throws RemoteException, LoginException;
 	
-	boolean reserveVideo(String video, String owner) throws RemoteException, LoginException;
+	Chunk readVideoChunk(String video, ClientData client, long offset) throws RemoteException, LoginException;
 	
-	void finalizeVideo(String video, String owner) throws RemoteException, LoginException;
+	Ticket requestVideoTicket(String video, ClientData client, long offset) throws RemoteException, LoginException;
+	
+	Ticket uploadTicket(String video, String owner, long offset, long length) throws RemoteException, LoginException;
+	
+	long reserveVideo(String video, String owner, long length) throws RemoteException, LoginException;
+	
+	void finalizeVideo(String video, String owner, Manifest manifest) throws RemoteException, LoginException;
 	
 	void finalizeVideoFromCentral(String video) throws RemoteException;
 	
+	boolean replicateTo(String video, SubserverInterface target, int targetID, long offset, BitSet present) throws RemoteException;
+	
 	void setId(int id, long wakeupTime) throws RemoteException;
 }
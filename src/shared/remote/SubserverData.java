@@ -3,11 +3,13 @@ package shared.remote;
 import shared.interfaces.SubserverInterface;
 
 import java.io.Serializable;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class SubserverData implements Serializable {
 	public SubserverInterface server;
 	public final ConcurrentHashMap<String, ClientData> users = new ConcurrentHashMap<>();
+	public final Set<String> videos = ConcurrentHashMap.newKeySet();
 	
 	public int id;
 	public long wakeupTime;
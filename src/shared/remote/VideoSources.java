@@ -0,0 +1,20 @@
+package shared.remote;
+
+import shared.interfaces.SubserverInterface;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+public class VideoSources implements Serializable {
+	public final long length;
+	public final HashMap<Integer, SubserverInterface> subservers = new HashMap<>();
+	
+	public VideoSources(long length) {
+		this.length = length;
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + length + " bytes on " + subservers.keySet() + "]";
+	}
+}
@@ -0,0 +1,77 @@
+package client;
+
+// Runs without a test framework, see the README for how to compile and run it
+class DriftControllerTest {
+	private static class FakeMedia implements DriftController.Media {
+		long time;
+		float rate = 1;
+		long seeked = -1;
+		
+		FakeMedia(long time) {
+			this.time = time;
+		}
+		
+		@Override
+		public long getTime() {
+			return time;
+		}
+		
+		@Override
+		public float getRate() {
+			return rate;
+		}
+		
+		@Override
+		public void setRate(float rate) {
+			this.rate = rate;
+		}
+		
+		@Override
+		public void seek(long millis) {
+			seeked = millis;
+			time = millis;
+		}
+	}
+	
+	public static void main(String[] args) {
+		smallDriftIsIgnored();
+		driftChangesRateWithinBand();
+		driftBeyondThresholdSeeks();
+		
+		System.out.println("DriftControllerTest passed");
+	}
+	
+	static void smallDriftIsIgnored() {
+		FakeMedia media = new FakeMedia(10_000);
+		
+		check(!new DriftController(media, 2000, 0.1f).follow(10_050, 1), "drift inside the dead band seeked");
+		check(media.rate == 1, "drift inside the dead band changed the rate to " + media.rate);
+		check(media.seeked == -1, "drift inside the dead band seeked to " + media.seeked);
+	}
+	
+	static void driftChangesRateWithinBand() {
+		FakeMedia behind = new FakeMedia(10_000);
+		check(!new DriftController(behind, 2000, 0.1f).follow(11_500, 1), "drift below the threshold seeked");
+		check(Math.abs(behind.rate - 1.1f) < 0.0001f, "rate behind the room wasn't clamped to the band, got " + behind.rate);
+		
+		FakeMedia ahead = new FakeMedia(10_000);
+		check(!new DriftController(ahead, 2000, 0.1f).follow(9_750, 1), "drift below the threshold seeked");
+		check(Math.abs(ahead.rate - 0.95f) < 0.0001f, "rate ahead of the room should be 0.95, got " + ahead.rate);
+		check(ahead.seeked == -1, "drift below the threshold seeked to " + ahead.seeked);
+	}
+	
+	static void driftBeyondThresholdSeeks() {
+		FakeMedia media = new FakeMedia(10_000);
+		check(new DriftController(media, 2000, 0.1f).follow(13_000, 1.5f), "drift beyond the threshold didn't seek");
+		check(media.seeked == 13_000, "seeked to " + media.seeked + " instead of 13000");
+		check(media.rate == 1.5f, "rate after a seek should be the room's, got " + media.rate);
+		
+		FakeMedia tight = new FakeMedia(10_000);
+		check(new DriftController(tight, 500, 0.1f).follow(10_600, 1), "drift beyond a lower threshold didn't seek");
+		check(tight.seeked == 10_600, "seeked to " + tight.seeked + " instead of 10600");
+	}
+	
+	private static void check(boolean condition, String failure) {
+		if (!condition) throw new AssertionError(failure);
+	}
+}
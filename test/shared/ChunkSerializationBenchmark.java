@@ -0,0 +1,75 @@
+package shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+// Compares the old default serialized Data with the Externalizable Chunk the way RMI marshals them, size on the wire and round trip time
+class ChunkSerializationBenchmark {
+	// The payload class Chunk replaced, the whole buffer is serialized whatever its size
+	private static class Data implements Serializable {
+		final byte[] data;
+		final int size;
+		
+		Data(byte[] data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+	}
+	
+	private static final int[] PAYLOADS = {1000, 64 * 1024, 1024 * 1024, Utils.PACKAGE_SIZE};
+	
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		
+		byte[] buffer = new byte[Utils.PACKAGE_SIZE];
+		new Random(1).nextBytes(buffer);
+		
+		System.out.printf("%-10s %-8s %12s %14s%n", "payload", "format", "bytes", "round trip us");
+		for (int payload : PAYLOADS) {
+			Object data = new Data(buffer, payload);
+			Object chunk = new Chunk("video.mp4", 0, 0, buffer, payload);
+			
+			// Before Chunk the video name went along as its own argument
+			report(payload, "Data", serialize("video.mp4", data).length, time(iterations, "video.mp4", data));
+			report(payload, "Chunk", serialize(chunk).length, time(iterations, chunk));
+		}
+	}
+	
+	private static void report(int payload, String format, int bytes, double micros) {
+		System.out.printf("%-10d %-8s %12d %14.1f%n", payload, format, bytes, micros);
+	}
+	
+	// Warmed up first, then averaged over the timed iterations
+	private static double time(int iterations, Object... objects) throws IOException, ClassNotFoundException {
+		for (int i = 0; i < iterations; i++) roundTrip(objects);
+		
+		long started = System.nanoTime();
+		for (int i = 0; i < iterations; i++) roundTrip(objects);
+		
+		return (System.nanoTime() - started) / 1000.0 / iterations;
+	}
+	
+	private static void roundTrip(Object... objects) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(objects)))) {
+			for (int i = 0; i < objects.length; i++) {
+				Object read = in.readObject();
+				if (read instanceof Chunk) ((Chunk) read).release();
+			}
+		}
+	}
+	
+	private static byte[] serialize(Object... objects) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			for (Object object : objects) out.writeObject(object);
+		}
+		
+		return bytes.toByteArray();
+	}
+}